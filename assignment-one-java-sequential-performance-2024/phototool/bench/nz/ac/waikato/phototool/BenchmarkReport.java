@@ -0,0 +1,127 @@
+package nz.ac.waikato.phototool;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Converts JMH results into megapixels/sec and compares them with a checked-in baseline.
+ *
+ * Usage: <code>BenchmarkReport results.csv baseline.csv [-update]</code>
+ * where results.csv was written by JMH with <code>-rf csv -prof gc</code>.
+ * Exits with code 1 if any benchmark is more than THRESHOLD slower than its baseline.
+ * The -update flag overwrites the baseline with the new results instead.
+ */
+public class BenchmarkReport {
+
+	/** A relative slowdown greater than this is reported as a regression. */
+	static final double THRESHOLD = 0.10;
+
+	private static final String BENCHMARK_CLASS = PhotoToolBenchmark.class.getSimpleName() + ".";
+
+	private static final String GC_ALLOC_RATE = "gc.alloc.rate";
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("Arguments: results.csv baseline.csv [-update]");
+			System.exit(1);
+		}
+		Path resultsFile = Paths.get(args[0]);
+		Path baselineFile = Paths.get(args[1]);
+		boolean update = args.length > 2 && "-update".equals(args[2]);
+
+		// key is "benchmark,size"
+		Map<String, Double> mpixPerSec = new TreeMap<>();
+		Map<String, Double> allocMBPerSec = new TreeMap<>();
+		List<String> lines = Files.readAllLines(resultsFile);
+		for (String line : lines.subList(1, lines.size())) {
+			List<String> fields = parseCsv(line);
+			String name = fields.get(0);
+			name = name.substring(name.indexOf(BENCHMARK_CLASS) + BENCHMARK_CLASS.length());
+			String size = fields.get(fields.size() - 1);
+			double score = Double.parseDouble(fields.get(4));
+			int colon = name.indexOf(':');
+			if (colon < 0) {
+				mpixPerSec.put(name + "," + size, score * megapixels(size));
+			} else if (name.endsWith(GC_ALLOC_RATE)) {
+				allocMBPerSec.put(name.substring(0, colon) + "," + size, score);
+			}
+		}
+
+		if (update) {
+			try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(baselineFile))) {
+				out.println("benchmark,size,mpix_per_sec");
+				for (Map.Entry<String, Double> result : mpixPerSec.entrySet()) {
+					out.format("%s,%.2f%n", result.getKey(), result.getValue());
+				}
+			}
+			System.out.println("Updated baseline " + baselineFile);
+			return;
+		}
+
+		Map<String, Double> baseline = new TreeMap<>();
+		if (Files.exists(baselineFile)) {
+			List<String> baseLines = Files.readAllLines(baselineFile);
+			for (String line : baseLines.subList(1, baseLines.size())) {
+				int comma = line.lastIndexOf(',');
+				baseline.put(line.substring(0, comma), Double.parseDouble(line.substring(comma + 1)));
+			}
+		}
+		int regressions = 0;
+		System.out.format("%-10s %-10s %10s %10s %8s %12s%n",
+				"benchmark", "size", "MPix/sec", "baseline", "change", "alloc MB/s");
+		for (Map.Entry<String, Double> result : mpixPerSec.entrySet()) {
+			String[] key = result.getKey().split(",");
+			Double base = baseline.get(result.getKey());
+			Double alloc = allocMBPerSec.get(result.getKey());
+			String change = "";
+			if (base != null) {
+				double ratio = result.getValue() / base - 1.0;
+				change = String.format("%+.1f%%", ratio * 100);
+				if (ratio < -THRESHOLD) {
+					change += " REGRESSION";
+					regressions++;
+				}
+			}
+			System.out.format("%-10s %-10s %10.2f %10s %8s %12s%n", key[0], key[1], result.getValue(),
+					base == null ? "-" : String.format("%.2f", base), change,
+					alloc == null ? "-" : String.format("%.1f", alloc));
+		}
+		if (regressions > 0) {
+			System.out.println(regressions + " benchmark(s) more than " + (int) (THRESHOLD * 100)
+					+ "% slower than the baseline.");
+			System.exit(1);
+		}
+	}
+
+	/** @return the number of megapixels in a WIDTHxHEIGHT photo size. */
+	static double megapixels(String size) {
+		int x = size.indexOf('x');
+		return Long.parseLong(size.substring(0, x)) * Long.parseLong(size.substring(x + 1)) / 1e6;
+	}
+
+	/** Splits one line of a JMH CSV file into its fields, removing any quotes. */
+	static List<String> parseCsv(String line) {
+		List<String> fields = new ArrayList<>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		for (char ch : line.toCharArray()) {
+			if (ch == '"') {
+				quoted = !quoted;
+			} else if (ch == ',' && !quoted) {
+				fields.add(field.toString());
+				field.setLength(0);
+			} else {
+				field.append(ch);
+			}
+		}
+		fields.add(field.toString());
+		return fields;
+	}
+}
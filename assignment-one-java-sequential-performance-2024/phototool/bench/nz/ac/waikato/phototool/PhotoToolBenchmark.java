@@ -0,0 +1,128 @@
+package nz.ac.waikato.phototool;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks for each photo operation, on synthetic photos of several sizes.
+ *
+ * Run with <code>ant bench</code>, which also converts the scores to
+ * megapixels/sec and compares them against <code>bench/baseline.csv</code>.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2G"})
+public class PhotoToolBenchmark {
+
+	/** The photo size, as WIDTHxHEIGHT. */
+	@Param({"640x480", "1944x2592", "4000x3000"})
+	public String size;
+
+	private File input;
+	private File output;
+	private Picture picture;
+	private PhotoTool tool;
+
+	/** Uses the lookup-table colour engine. */
+	private PhotoTool lutTool;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		int x = size.indexOf('x');
+		int width = Integer.parseInt(size.substring(0, x));
+		int height = Integer.parseInt(size.substring(x + 1));
+		picture = syntheticPhoto(width, height);
+		input = File.createTempFile("phototool-bench", ".png");
+		output = File.createTempFile("phototool-bench-out", ".png");
+		picture.save(input.getPath());
+		tool = new PhotoTool(input.getPath());
+		lutTool = new PhotoTool(input.getPath());
+		lutTool.setColourEngine(ColourEngine.lut());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		input.delete();
+		output.delete();
+	}
+
+	/**
+	 * @return a photo with smooth gradients plus some noise, so that it
+	 *   compresses roughly like a real photo.
+	 */
+	static Picture syntheticPhoto(int width, int height) {
+		Random random = new Random(42);
+		Picture pic = new Picture(width, height);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int red = (x * 255 / width + random.nextInt(16)) & 0xFF;
+				int green = (y * 255 / height + random.nextInt(16)) & 0xFF;
+				int blue = ((x + y) * 127 / (width + height) + random.nextInt(16)) & 0xFF;
+				pic.set(x, y, red << 16 | green << 8 | blue);
+			}
+		}
+		return pic;
+	}
+
+	@Benchmark
+	public Picture grayscale() {
+		tool.grayscale();
+		Picture result = tool.getCurrentPhoto();
+		tool.undo();
+		return result;
+	}
+
+	@Benchmark
+	public Picture sepia() {
+		tool.sepia();
+		Picture result = tool.getCurrentPhoto();
+		tool.undo();
+		return result;
+	}
+
+	@Benchmark
+	public Picture sepiaLut() {
+		lutTool.sepia();
+		Picture result = lutTool.getCurrentPhoto();
+		lutTool.undo();
+		return result;
+	}
+
+	@Benchmark
+	public Picture half() {
+		tool.half();
+		Picture result = tool.getCurrentPhoto();
+		tool.undo();
+		return result;
+	}
+
+	@Benchmark
+	public Picture load() {
+		return new Picture(input.getPath());
+	}
+
+	@Benchmark
+	public File save() throws IOException {
+		picture.save(output.getPath());
+		return output;
+	}
+}
@@ -0,0 +1,101 @@
+package nz.ac.waikato.phototool;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes and writes edited photos on a pool of background threads, so that
+ * processing can move on to the next photo while the previous one is saved.
+ *
+ * At most <code>queued</code> photos wait to be written at once.  Saving
+ * another photo blocks until one of them is done, which limits the memory
+ * held by photos that have been edited but not yet written.  Saves of the
+ * same file are written in the order they were made, so the last one wins,
+ * as it does with synchronous saves.
+ */
+class AsyncSaver {
+
+	private final ExecutorService encoders;
+	private final Semaphore permits;
+
+	/** The most recent write of each file, which the next write of it waits for. */
+	private final Map<String, Future<?>> latest = new HashMap<>();
+
+	/**
+	 * @param numEncoders the number of threads encoding photos.  At least 1.
+	 * @param queued the maximum number of photos waiting or being written.  At least numEncoders.
+	 */
+	AsyncSaver(int numEncoders, int queued) {
+		if (numEncoders < 1 || queued < numEncoders) {
+			throw new IllegalArgumentException("need at least 1 encoder and a queue of at least "
+					+ numEncoders + ", not " + numEncoders + " and " + queued);
+		}
+		encoders = Executors.newFixedThreadPool(numEncoders, r -> {
+			Thread t = new Thread(r, "photo-encoder");
+			t.setDaemon(true);
+			return t;
+		});
+		permits = new Semaphore(queued);
+	}
+
+	/**
+	 * Write a photo in the background, waiting first if too many photos are queued.
+	 * An IO error is reported with the same warning as PhotoTool.save, and any
+	 * other failure with a similar warning, since nothing waits for the result.
+	 *
+	 * @param pic the photo to write, which must not be changed afterwards.
+	 * @param newName the file to write it to.
+	 * @param photoName the name of the original photo, for the warning.
+	 * @param saves records whether the photo was written, once it is, or null.
+	 */
+	void save(Picture pic, String newName, String photoName, Map<String, Boolean> saves) {
+		permits.acquireUninterruptibly();
+		synchronized (latest) {
+			final Future<?> previous = latest.get(newName);
+			try {
+				latest.put(newName, encoders.submit(() -> {
+					boolean written = false;
+					try {
+						if (previous != null) {
+							previous.get();
+						}
+						pic.save(newName);
+						written = true;
+					} catch (IOException ex) {
+						System.err.println("WARNING: IO error while saving " + photoName + ": " + ex.getMessage());
+					} catch (RuntimeException | Error ex) {
+						// nothing calls get() on this future, so report it here or it is lost
+						System.err.println("WARNING: could not save " + photoName + ": " + ex);
+					} catch (InterruptedException | ExecutionException ex) {
+						// the earlier write has already reported its own failure
+					} finally {
+						PhotoTool.logSave(saves, newName, written);
+						permits.release();
+					}
+				}));
+			} catch (RuntimeException ex) {
+				permits.release();
+				throw ex;
+			}
+		}
+	}
+
+	/**
+	 * Wait until every photo that has been saved is written, then stop the encoders.
+	 *
+	 * @throws InterruptedException if the calling thread is interrupted.
+	 */
+	void finish() throws InterruptedException {
+		encoders.shutdown();
+		while (!encoders.awaitTermination(1, TimeUnit.MINUTES)) {
+			// keep waiting: a very large photo can take a while to encode
+		}
+	}
+}
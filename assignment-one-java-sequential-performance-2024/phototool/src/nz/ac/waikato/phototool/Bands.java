@@ -0,0 +1,113 @@
+package nz.ac.waikato.phototool;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs a row-by-row image operation in parallel, by splitting the rows of the
+ * output image into bands that are processed on a ForkJoinPool.
+ *
+ * Each band only writes its own rows of the output, so the result is identical
+ * to processing all the rows sequentially.  Small images are always processed
+ * sequentially, since splitting them costs more than it saves.
+ */
+class Bands {
+
+	/** Images with fewer pixels than this are processed sequentially. */
+	static final int SEQUENTIAL_THRESHOLD = 1 << 18;
+
+	/** Bands are split until they contain no more than this many pixels. */
+	static final int BAND_PIXELS = 1 << 16;
+
+	/** Processes every image sequentially, on the calling thread. */
+	static final Bands SEQUENTIAL = new Bands(1);
+
+	/** An operation that processes a range of rows of an image. */
+	interface RowTask {
+		/**
+		 * @param yFrom the first row to process.
+		 * @param yTo one past the last row to process.
+		 */
+		void rows(int yFrom, int yTo);
+	}
+
+	private final int parallelism;
+
+	/** Null when sequential. */
+	private final ForkJoinPool pool;
+
+	/** Every worker thread the pool has started, so that their work can be measured. */
+	private final List<Thread> workers = new CopyOnWriteArrayList<>();
+
+	/**
+	 * @param parallelism the number of threads to use.  1 means sequential.
+	 */
+	Bands(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be at least 1, not " + parallelism);
+		}
+		this.parallelism = parallelism;
+		this.pool = parallelism == 1 ? null : new ForkJoinPool(parallelism, pool -> {
+			ForkJoinWorkerThread worker = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+			workers.removeIf(thread -> !thread.isAlive());
+			workers.add(worker);
+			return worker;
+		}, null, false);
+	}
+
+	/** @return the worker threads that have been started, some of which may have finished. */
+	List<Thread> workers() {
+		return workers;
+	}
+
+	/** @return the number of threads used. */
+	int parallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Process all the rows of an image, in parallel if the image is big enough.
+	 *
+	 * @param width the width of the image being written.
+	 * @param height the height of the image being written.
+	 * @param task processes one band of rows.  Must only write to those rows.
+	 */
+	void forEachBand(int width, int height, RowTask task) {
+		if (pool == null || (long) width * height < SEQUENTIAL_THRESHOLD) {
+			task.rows(0, height);
+		} else {
+			int bandRows = Math.max(1, BAND_PIXELS / Math.max(1, width));
+			pool.invoke(new Band(task, 0, height, bandRows));
+		}
+	}
+
+	/** Splits a range of rows in half until it is small enough to process directly. */
+	private static final class Band extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final RowTask task;
+		private final int yFrom;
+		private final int yTo;
+		private final int bandRows;
+
+		Band(RowTask task, int yFrom, int yTo, int bandRows) {
+			this.task = task;
+			this.yFrom = yFrom;
+			this.yTo = yTo;
+			this.bandRows = bandRows;
+		}
+
+		@Override
+		protected void compute() {
+			if (yTo - yFrom <= bandRows) {
+				task.rows(yFrom, yTo);
+			} else {
+				int mid = (yFrom + yTo) >>> 1;
+				invokeAll(new Band(task, yFrom, mid, bandRows), new Band(task, mid, yTo, bandRows));
+			}
+		}
+	}
+}
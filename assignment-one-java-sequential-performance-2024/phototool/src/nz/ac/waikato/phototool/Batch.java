@@ -0,0 +1,96 @@
+package nz.ac.waikato.phototool;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Streams a large number of photos through decode, process and save,
+ * with a bounded number of photos in memory at once.
+ *
+ * A producer thread submits photos to a pool of decoder threads, but only
+ * while fewer than <code>inFlight</code> photos are being decoded, waiting or
+ * being processed.  The calling thread processes the decoded photos in their
+ * original order, so decoding the next photos overlaps with processing
+ * the current one.
+ */
+class Batch {
+
+	/** An operation applied to each decoded photo. */
+	interface PhotoTask {
+		void process(PhotoTool tool);
+	}
+
+	/** The maximum number of photos in memory at once. */
+	private final int inFlight;
+
+	/**
+	 * @param inFlight the maximum number of photos in memory at once.  At least 1.
+	 */
+	Batch(int inFlight) {
+		if (inFlight < 1) {
+			throw new IllegalArgumentException("in-flight photos must be at least 1, not " + inFlight);
+		}
+		this.inFlight = inFlight;
+	}
+
+	/**
+	 * Decode each photo, process it, then drop it, and print the overall throughput.
+	 * Photos that cannot be decoded are reported and skipped.
+	 *
+	 * @param photoNames the photos to process, in order.
+	 * @param task processes (and usually saves) one photo.
+	 * @return the number of photos that were processed.
+	 * @throws InterruptedException if the calling thread is interrupted.
+	 */
+	int run(List<String> photoNames, PhotoTask task) throws InterruptedException {
+		final long time0 = System.nanoTime();
+		final Semaphore permits = new Semaphore(inFlight);
+		final BlockingQueue<Future<PhotoTool>> decoded = new ArrayBlockingQueue<>(inFlight);
+		final int numDecoders = Math.min(inFlight, Runtime.getRuntime().availableProcessors());
+		final ExecutorService decoders = Executors.newFixedThreadPool(numDecoders, r -> {
+			Thread t = new Thread(r, "photo-decoder");
+			t.setDaemon(true);
+			return t;
+		});
+		Thread producer = new Thread(() -> {
+			try {
+				for (String name : photoNames) {
+					permits.acquire();
+					decoded.put(decoders.submit(() -> new PhotoTool(name)));
+				}
+			} catch (InterruptedException ex) {
+				// the consumer has given up, so stop submitting photos
+			}
+		}, "photo-producer");
+		producer.setDaemon(true);
+		producer.start();
+		int done = 0;
+		try {
+			for (String name : photoNames) {
+				Future<PhotoTool> next = decoded.take();
+				try {
+					task.process(next.get());
+					done++;
+				} catch (ExecutionException ex) {
+					System.err.println("WARNING: could not load " + name + ": " + ex.getCause().getMessage());
+				} finally {
+					permits.release();
+				}
+			}
+		} finally {
+			producer.interrupt();
+			decoders.shutdownNow();
+		}
+		long time1 = System.nanoTime();
+		double secs = (time1 - time0) / 1E9;
+		System.out.println("Processed " + done + " photos in " + secs + " secs ("
+				+ String.format("%.2f", done / secs) + " photos/sec).");
+		return done;
+	}
+}
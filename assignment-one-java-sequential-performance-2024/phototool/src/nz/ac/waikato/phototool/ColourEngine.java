@@ -0,0 +1,86 @@
+package nz.ac.waikato.phototool;
+
+/**
+ * Implements the per-pixel colour operations, one pixel at a time or in bulk.
+ *
+ * The SCALAR engine is the original double-precision code.  The lut engine
+ * compiles the sepia matrix into lookup tables (see ColourMatrix).  The
+ * vector engine uses SIMD instructions when the <code>jdk.incubator.vector</code>
+ * module is available (run java with <code>--add-modules jdk.incubator.vector</code>).
+ */
+interface ColourEngine {
+
+	/** @return the grayscale version of one RGB pixel. */
+	int grayscalePixel(int pixel);
+
+	/** @return the sepia version of one RGB pixel. */
+	int sepiaPixel(int pixel);
+
+	/** Convert the pixels src[from..to-1] to grayscale, storing them in dst. */
+	default void grayscale(int[] src, int[] dst, int from, int to) {
+		for (int i = from; i < to; i++) {
+			dst[i] = grayscalePixel(src[i]);
+		}
+	}
+
+	/** Convert the pixels src[from..to-1] to sepia, storing them in dst. */
+	default void sepia(int[] src, int[] dst, int from, int to) {
+		for (int i = from; i < to; i++) {
+			dst[i] = sepiaPixel(src[i]);
+		}
+	}
+
+	/** The original double-precision colour operations. */
+	ColourEngine SCALAR = new ColourEngine() {
+		@Override
+		public int grayscalePixel(int pixel) {
+			return PhotoTool.grayscalePixel(pixel);
+		}
+
+		@Override
+		public int sepiaPixel(int pixel) {
+			return PhotoTool.sepiaPixel(pixel);
+		}
+	};
+
+	/**
+	 * @return an engine that computes sepia with three table lookups per pixel.
+	 *   Its sepia uses fixed-point maths so each channel may differ from SCALAR
+	 *   by one.  Grayscale stays on the integer path of SCALAR, which measured
+	 *   faster than a table, since the division by 3 compiles to a multiply.
+	 */
+	static ColourEngine lut() {
+		ColourMatrix.Lut sepia = ColourMatrix.SEPIA.compile();
+		return new ColourEngine() {
+			@Override
+			public int grayscalePixel(int pixel) {
+				return PhotoTool.grayscalePixel(pixel);
+			}
+
+			@Override
+			public int sepiaPixel(int pixel) {
+				return sepia.applyAsInt(pixel);
+			}
+
+			@Override
+			public void sepia(int[] src, int[] dst, int from, int to) {
+				sepia.apply(src, dst, from, to);
+			}
+		};
+	}
+
+	/**
+	 * @return the SIMD engine, or SCALAR if the Vector API is not available.
+	 *   Its grayscale is identical to SCALAR, while its sepia uses fixed-point
+	 *   maths so each channel may differ from SCALAR by one.
+	 */
+	static ColourEngine vector() {
+		try {
+			return (ColourEngine) Class.forName("nz.ac.waikato.phototool.VectorColourEngine")
+					.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError ex) {
+			System.err.println("WARNING: Vector API not available, using scalar colour operations: " + ex);
+			return SCALAR;
+		}
+	}
+}
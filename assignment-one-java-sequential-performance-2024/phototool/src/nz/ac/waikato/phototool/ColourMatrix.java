@@ -0,0 +1,179 @@
+package nz.ac.waikato.phototool;
+
+import java.util.function.IntUnaryOperator;
+
+/**
+ * A colour transform where each output channel is a weighted sum of the
+ * input red, green and blue channels, truncated and clamped to 0..255.
+ *
+ * A matrix is compiled into three lookup tables, one per input channel.
+ * Each table entry packs the contributions of that input value to all three
+ * output channels as fixed-point numbers in separate 21-bit fields of a long,
+ * so one pixel costs three lookups and two additions, then a shift and clamp
+ * per output channel.
+ */
+final class ColourMatrix {
+
+	/** The average of the three channels.  Once compiled, this is identical to integer division by 3. */
+	static final ColourMatrix GRAYSCALE = new ColourMatrix(new double[][] {
+		{1 / 3.0, 1 / 3.0, 1 / 3.0},
+		{1 / 3.0, 1 / 3.0, 1 / 3.0},
+		{1 / 3.0, 1 / 3.0, 1 / 3.0},
+	});
+
+	/** The sepia coefficients of PhotoTool.sepiaPixel. */
+	static final ColourMatrix SEPIA = new ColourMatrix(new double[][] {
+		{.393, .769, .189},
+		{.349, .686, .168},
+		{.272, .534, .131},
+	});
+
+	/** The width of each output channel field in a table entry. */
+	private static final int FIELD_BITS = 21;
+	private static final long FIELD_MASK = (1L << FIELD_BITS) - 1;
+
+	/** The most fraction bits used.  Fewer are used if the coefficients are large. */
+	private static final int MAX_FRACTION_BITS = 12;
+
+	/** Rows are output channels (red, green, blue); columns are input channels. */
+	private final double[][] coefficients;
+
+	/**
+	 * @param coefficients 3x3 weights: row o, column i is the weight of input
+	 *   channel i in output channel o, in the order red, green, blue.
+	 */
+	ColourMatrix(double[][] coefficients) {
+		if (coefficients.length != 3) {
+			throw new IllegalArgumentException("colour matrix must have 3 rows");
+		}
+		this.coefficients = new double[3][];
+		for (int o = 0; o < 3; o++) {
+			if (coefficients[o].length != 3) {
+				throw new IllegalArgumentException("colour matrix must have 3 columns");
+			}
+			this.coefficients[o] = coefficients[o].clone();
+		}
+	}
+
+	/**
+	 * @return the transformed pixel, calculated in double precision.
+	 */
+	int apply(int pixel) {
+		int red = (pixel >> 16) & 0xFF;
+		int green = (pixel >> 8) & 0xFF;
+		int blue = pixel & 0xFF;
+		int result = 0;
+		for (int o = 0; o < 3; o++) {
+			double[] row = coefficients[o];
+			double value = red * row[0] + green * row[1] + blue * row[2];
+			int channel = value <= 0 ? 0 : (value >= 255 ? 255 : (int) value);
+			result |= channel << (16 - 8 * o);
+		}
+		return result;
+	}
+
+	/**
+	 * Compile this matrix into lookup tables.
+	 *
+	 * The result is the exact weighted sum, truncated, except when it is within
+	 * about 1/1000 below an integer, so it may differ from <code>apply</code>
+	 * by one.  Grayscale is always exact.
+	 *
+	 * @return a point-wise operator that applies this matrix to a pixel.
+	 * @throws IllegalArgumentException if the weights are too large for the
+	 *   fields of a table entry, even with no fraction bits.
+	 */
+	Lut compile() {
+		// use as many fraction bits as fit in a field, for the largest output channel
+		double largest = 0.0;
+		for (double[] row : coefficients) {
+			largest = Math.max(largest, Math.abs(row[0]) + Math.abs(row[1]) + Math.abs(row[2]));
+		}
+		int fractionBits = MAX_FRACTION_BITS;
+		while (fractionBits > 0 && !fits(largest, fractionBits)) {
+			fractionBits--;
+		}
+		if (!fits(largest, fractionBits)) {
+			throw new IllegalArgumentException("colour matrix weights are too large to compile: " + largest);
+		}
+		final int bits = fractionBits;
+		final long one = 1L << bits;
+		final long[][] tables = new long[3][256];
+		final int[] offsets = new int[3];
+		for (int o = 0; o < 3; o++) {
+			int shift = FIELD_BITS * (2 - o);
+			for (int i = 0; i < 3; i++) {
+				double weight = coefficients[o][i];
+				// negative weights are shifted up by their most negative value, so each field stays positive
+				long offset = weight < 0 ? Math.round(-255 * weight * one) : 0;
+				offsets[o] += offset;
+				for (int v = 0; v < 256; v++) {
+					tables[i][v] += (Math.round(v * weight * one) + offset) << shift;
+				}
+			}
+			// each of the three entries is rounded by up to half a unit, so add 2 units to
+			// keep exact integer results (such as a sum divisible by 3) from rounding down
+			for (int v = 0; v < 256; v++) {
+				tables[0][v] += 2L << shift;
+			}
+		}
+		return new Lut(tables[0], tables[1], tables[2], offsets, bits);
+	}
+
+	/**
+	 * @return true if an output channel whose weights add up to largest fits in a
+	 *   field, with the given fraction bits and a margin for the rounding units.
+	 */
+	private static boolean fits(double largest, int fractionBits) {
+		return 255 * largest * (1 << fractionBits) + 8 < (1L << FIELD_BITS);
+	}
+
+	/** The compiled form of a colour matrix. */
+	static final class Lut implements IntUnaryOperator {
+		private final long[] red;
+		private final long[] green;
+		private final long[] blue;
+		private final int redOffset;
+		private final int greenOffset;
+		private final int blueOffset;
+		private final int bits;
+
+		Lut(long[] red, long[] green, long[] blue, int[] offsets, int bits) {
+			this.red = red;
+			this.green = green;
+			this.blue = blue;
+			this.redOffset = offsets[0];
+			this.greenOffset = offsets[1];
+			this.blueOffset = offsets[2];
+			this.bits = bits;
+		}
+
+		@Override
+		public int applyAsInt(int pixel) {
+			long sum = red[(pixel >> 16) & 0xFF] + green[(pixel >> 8) & 0xFF] + blue[pixel & 0xFF];
+			int newRed = clamp((int) (sum >>> (2 * FIELD_BITS)) - redOffset >> bits);
+			int newGreen = clamp((int) ((sum >>> FIELD_BITS) & FIELD_MASK) - greenOffset >> bits);
+			int newBlue = clamp((int) (sum & FIELD_MASK) - blueOffset >> bits);
+			return newRed << 16 | newGreen << 8 | newBlue;
+		}
+
+		/** Transform the pixels src[from..to-1], storing them in dst. */
+		void apply(int[] src, int[] dst, int from, int to) {
+			final long[] red = this.red;
+			final long[] green = this.green;
+			final long[] blue = this.blue;
+			for (int i = from; i < to; i++) {
+				int pixel = src[i];
+				long sum = red[(pixel >> 16) & 0xFF] + green[(pixel >> 8) & 0xFF] + blue[pixel & 0xFF];
+				int newRed = clamp((int) (sum >>> (2 * FIELD_BITS)) - redOffset >> bits);
+				int newGreen = clamp((int) ((sum >>> FIELD_BITS) & FIELD_MASK) - greenOffset >> bits);
+				int newBlue = clamp((int) (sum & FIELD_MASK) - blueOffset >> bits);
+				dst[i] = newRed << 16 | newGreen << 8 | newBlue;
+			}
+		}
+
+		private static int clamp(int value) {
+			return value <= 0 ? 0 : (value >= 255 ? 255 : value);
+		}
+	}
+}
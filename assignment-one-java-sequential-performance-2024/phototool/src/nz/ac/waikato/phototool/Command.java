@@ -0,0 +1,295 @@
+package nz.ac.waikato.phototool;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * One photo-editing command, parsed from the command line.
+ *
+ * The grammar is <code>name</code> or <code>name:param,param,...</code> where
+ * each param is either a value or <code>key=value</code>.  For example:
+ * <pre>
+ *   grayscale              sepia:strength=0.7
+ *   matrix:Rr,Rg,Rb,Gr,Gg,Gb,Br,Bg,Bb     (a 3x3 colour matrix, row by row)
+ *   half    quarter        scale:0.25    scale:640,480    scale:0.5,filter=lanczos
+ *   undo    show    save
+ * </pre>
+ * Each command is parsed once, into an action that calls PhotoTool directly,
+ * and is then reused for every photo.
+ */
+final class Command {
+
+	/** The command as it was written. */
+	final String text;
+
+	/** The command name, without any parameters. */
+	final String name;
+
+	/**
+	 * The command with all its parameters in a standard form, so that two
+	 * commands with the same key always have the same effect.
+	 */
+	final String key;
+
+	/** For point-wise colour commands: the operator applied to each pixel, else null. */
+	final IntUnaryOperator op;
+
+	/** For resampling commands other than half: the pass that resizes a photo, else null. */
+	final Pipeline.Pass pass;
+
+	private final Consumer<PhotoTool> action;
+
+	private Command(String text, String name, String key, IntUnaryOperator op, Pipeline.Pass pass,
+			Consumer<PhotoTool> action) {
+		this.text = text;
+		this.name = name;
+		this.key = key;
+		this.op = op;
+		this.pass = pass;
+		this.action = action;
+	}
+
+	/** Apply this command to the current photo of tool. */
+	void apply(PhotoTool tool) {
+		action.accept(tool);
+	}
+
+	@Override
+	public String toString() {
+		return text;
+	}
+
+	/**
+	 * Parse a whole command sequence.
+	 *
+	 * @param texts the commands, in order.
+	 * @param colours implements the point-wise colour commands.
+	 * @return the parsed commands.
+	 * @throws IllegalArgumentException if a command is unknown or has bad parameters.
+	 */
+	static List<Command> parseAll(List<String> texts, ColourEngine colours) {
+		List<Command> cmds = new ArrayList<>();
+		for (String text : texts) {
+			Command cmd = parse(text, colours);
+			if (cmd == null) {
+				throw new IllegalArgumentException("unknown command: " + text);
+			}
+			cmds.add(cmd);
+		}
+		return cmds;
+	}
+
+	/**
+	 * Parse one command.
+	 *
+	 * @param text the command, with any parameters.
+	 * @param colours implements the point-wise colour commands.
+	 * @return the command, or null if there is no command with that name.
+	 * @throws IllegalArgumentException if the command has bad parameters.
+	 */
+	static Command parse(String text, ColourEngine colours) {
+		int colon = text.indexOf(':');
+		String name = colon < 0 ? text : text.substring(0, colon);
+		Params params = new Params(text, colon < 0 ? "" : text.substring(colon + 1));
+		final Command cmd;
+		switch (name) {
+		case "grayscale":
+			cmd = colour(text, name, params, colours::grayscalePixel, PhotoTool::grayscale);
+			break;
+		case "sepia":
+			cmd = colour(text, name, params, colours::sepiaPixel, PhotoTool::sepia);
+			break;
+		case "matrix":
+			cmd = matrix(text, name, params);
+			break;
+		case "half":
+			cmd = new Command(text, name, name, null, null, PhotoTool::half);
+			break;
+		case "quarter":
+			cmd = new Command(text, name, name, null, PhotoTool.QUARTER, PhotoTool::quarter);
+			break;
+		case "scale":
+			cmd = scale(text, name, params);
+			break;
+		case "undo":
+			cmd = new Command(text, name, name, null, null, PhotoTool::undo);
+			break;
+		case "show":
+			cmd = new Command(text, name, name, null, null, PhotoTool::show);
+			break;
+		case "save":
+			cmd = new Command(text, name, name, null, null, PhotoTool::save);
+			break;
+		default:
+			return null;
+		}
+		params.checkAllUsed();
+		return cmd;
+	}
+
+	/**
+	 * A colour command, optionally blended with the photo underneath:
+	 * strength=1 is the full effect, strength=0 leaves the photo unchanged.
+	 */
+	private static Command colour(String text, String name, Params params, IntUnaryOperator full,
+			Consumer<PhotoTool> fullAction) {
+		double strength = params.number("strength", 0, 1.0);
+		if (!(strength >= 0.0 && strength <= 1.0)) {
+			throw new IllegalArgumentException(text + ": strength must be from 0 to 1");
+		}
+		if (strength == 1.0) {
+			return new Command(text, name, name, full, null, fullAction);
+		}
+		IntUnaryOperator op = pixel -> blend(pixel, full.applyAsInt(pixel), strength);
+		return new Command(text, name, name + ":strength=" + strength, op, null, tool -> tool.recolour(op));
+	}
+
+	/**
+	 * A user-defined colour matrix, given as nine numbers, compiled into lookup tables,
+	 * or applied in double precision if its weights are too large for the tables.
+	 */
+	private static Command matrix(String text, String name, Params params) {
+		double[][] coefficients = new double[3][3];
+		StringBuilder key = new StringBuilder(name);
+		for (int i = 0; i < 9; i++) {
+			coefficients[i / 3][i % 3] = params.number("m" + (i / 3 + 1) + (i % 3 + 1), i, Double.NaN);
+			key.append(i == 0 ? ':' : ',').append(coefficients[i / 3][i % 3]);
+		}
+		ColourMatrix matrix = new ColourMatrix(coefficients);
+		IntUnaryOperator compiled;
+		try {
+			compiled = matrix.compile();
+		} catch (IllegalArgumentException ex) {
+			compiled = matrix::apply;
+		}
+		final IntUnaryOperator op = compiled;
+		return new Command(text, name, key.toString(), op, null, tool -> tool.recolour(op));
+	}
+
+	/** The most pixels that one photo can hold, since they are kept in one int array. */
+	private static final int MAX_PIXELS = Integer.MAX_VALUE - 8;
+
+	/** scale:Factor or scale:Width,Height, with an optional filter=box|lanczos. */
+	private static Command scale(String text, String name, Params params) {
+		String filterName = params.string("filter", -1, "box");
+		final Resampler.Filter filter;
+		if ("box".equals(filterName)) {
+			filter = Resampler.Filter.BOX;
+		} else if ("lanczos".equals(filterName)) {
+			filter = Resampler.Filter.LANCZOS3;
+		} else {
+			throw new IllegalArgumentException(text + ": filter must be box or lanczos");
+		}
+		final Pipeline.Pass pass;
+		final String key;
+		if (params.has("height", 1)) {
+			double w = params.number("width", 0, Double.NaN);
+			double h = params.number("height", 1, Double.NaN);
+			if (!(w >= 1 && h >= 1 && w == Math.rint(w) && h == Math.rint(h))) {
+				throw new IllegalArgumentException(text + ": width and height must be whole numbers of at least 1");
+			}
+			if (w * h > MAX_PIXELS) {
+				throw new IllegalArgumentException(text + ": width times height must be at most " + MAX_PIXELS);
+			}
+			int width = (int) w;
+			int height = (int) h;
+			pass = Resampler.resize(width, height, filter);
+			key = name + ":" + width + "," + height + ",filter=" + filterName;
+		} else {
+			double factor = params.number("factor", 0, Double.NaN);
+			if (!(factor > 0.0)) {
+				throw new IllegalArgumentException(text + ": scale factor must be greater than 0");
+			}
+			pass = Resampler.scaleBy(factor, filter);
+			key = name + ":" + factor + ",filter=" + filterName;
+		}
+		return new Command(text, name, key, null, pass, tool -> tool.resample(pass));
+	}
+
+	/** @return each channel of pixel moved the given fraction of the way towards target. */
+	static int blend(int pixel, int target, double strength) {
+		int result = 0;
+		for (int shift = 16; shift >= 0; shift -= 8) {
+			int from = (pixel >> shift) & 0xFF;
+			int to = (target >> shift) & 0xFF;
+			result |= (int) (from + strength * (to - from) + 0.5) << shift;
+		}
+		return result;
+	}
+
+	/** The parameters of one command, which may be given by position or by key. */
+	private static final class Params {
+		private final String text;
+		private final List<String> positional = new ArrayList<>();
+		private final Map<String, String> named = new LinkedHashMap<>();
+		private int positionalUsed;
+
+		Params(String text, String params) {
+			this.text = text;
+			if (params.isEmpty()) {
+				return;
+			}
+			for (String param : params.split(",")) {
+				int equals = param.indexOf('=');
+				if (equals < 0) {
+					if (!named.isEmpty()) {
+						throw new IllegalArgumentException(text + ": positional parameter after key=value");
+					}
+					positional.add(param);
+				} else {
+					named.put(param.substring(0, equals), param.substring(equals + 1));
+				}
+			}
+		}
+
+		/** @return true if the parameter was given, by key or at the given position. */
+		boolean has(String key, int position) {
+			return named.containsKey(key) || (position >= 0 && position < positional.size());
+		}
+
+		/**
+		 * @param key the name of the parameter.
+		 * @param position its position, or -1 if it can only be given by key.
+		 * @param defaultValue the value if it is not given.
+		 * @return the value of the parameter.
+		 */
+		String string(String key, int position, String defaultValue) {
+			String value = named.remove(key);
+			if (value == null && position >= 0 && position < positional.size()) {
+				value = positional.get(position);
+				positionalUsed = Math.max(positionalUsed, position + 1);
+			}
+			return value == null ? defaultValue : value;
+		}
+
+		/** Like string, but the value must be a number.  NaN as the default means required. */
+		double number(String key, int position, double defaultValue) {
+			String value = string(key, position, null);
+			if (value == null) {
+				if (Double.isNaN(defaultValue)) {
+					throw new IllegalArgumentException(text + ": missing parameter " + key);
+				}
+				return defaultValue;
+			}
+			try {
+				return Double.parseDouble(value);
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException(text + ": " + key + " must be a number, not " + value);
+			}
+		}
+
+		/** @throws IllegalArgumentException if any parameter was not used by the command. */
+		void checkAllUsed() {
+			if (positionalUsed < positional.size()) {
+				throw new IllegalArgumentException(text + ": too many parameters");
+			}
+			if (!named.isEmpty()) {
+				throw new IllegalArgumentException(text + ": unknown parameter " + named.keySet().iterator().next());
+			}
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package nz.ac.waikato.phototool;
+
+/**
+ * Counts non-negative long values in log-linear buckets, to estimate percentiles
+ * in constant memory, in the style of HdrHistogram.
+ *
+ * Values below 64 are counted exactly.  Larger values are grouped into 32
+ * buckets per power of two, so a percentile is within about 3% of the
+ * true value.  The count, mean and maximum are exact.
+ */
+class Histogram {
+
+	/** The number of buckets per power of two is 1 << SUB_BITS. */
+	private static final int SUB_BITS = 5;
+
+	private final long[] counts = new long[64 << SUB_BITS];
+	private long count;
+	private long total;
+	private long max;
+
+	/** Count one value.  Negative values are counted as zero. */
+	void record(long value) {
+		value = Math.max(0, value);
+		counts[index(value)]++;
+		count++;
+		total += value;
+		max = Math.max(max, value);
+	}
+
+	/** @return the number of values recorded. */
+	long count() {
+		return count;
+	}
+
+	/** @return the largest value recorded, or 0 if none. */
+	long max() {
+		return max;
+	}
+
+	/** @return the mean of the values recorded, or 0 if none. */
+	double mean() {
+		return count == 0 ? 0.0 : (double) total / count;
+	}
+
+	/**
+	 * @param percentile eg. 50.0 for the median.
+	 * @return the largest value in the bucket that contains the given percentile,
+	 *   but no more than the maximum.  0 if no values have been recorded.
+	 */
+	long percentile(double percentile) {
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(max, lowest(i + 1) - 1);
+			}
+		}
+		return max;
+	}
+
+	private static int index(long value) {
+		if (value < (2 << SUB_BITS)) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return (shift << SUB_BITS) + (int) (value >>> shift);
+	}
+
+	/** @return the smallest value that is counted in the given bucket. */
+	private static long lowest(int index) {
+		if (index < (2 << SUB_BITS)) {
+			return index;
+		}
+		int shift = (index >> SUB_BITS) - 1;
+		return (long) (index - (shift << SUB_BITS)) << shift;
+	}
+}
@@ -0,0 +1,197 @@
+package nz.ac.waikato.phototool;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The undo stack of a photo, stored as the original photo plus a recipe for each edit.
+ *
+ * A recipe is the list of passes that re-create an edited photo from the photo
+ * underneath it.  Recently used edited photos are kept in a least-recently-used
+ * cache, limited by a memory budget.  When an evicted photo is needed again
+ * (eg. after an undo) it is re-created from the nearest cached photo below it,
+ * or from the original.
+ */
+class History {
+
+	/** No memory limit: every edited photo stays cached until it is undone. */
+	static final long UNLIMITED = Long.MAX_VALUE;
+
+	/** One entry of the undo stack. */
+	private static final class Frame {
+		/** The photo underneath this one.  Null for the original. */
+		final Frame parent;
+
+		/** The passes that turn the parent photo into this one. */
+		final Pipeline.Pass[] recipe;
+
+		final int width;
+		final int height;
+
+		Frame(Frame parent, Pipeline.Pass[] recipe, int width, int height) {
+			this.parent = parent;
+			this.recipe = recipe;
+			this.width = width;
+			this.height = height;
+		}
+
+		long bytes() {
+			return 4L * width * height;
+		}
+	}
+
+	private final Picture original;
+
+	/** The undo stack.  The original photo is entry 0. */
+	private final List<Frame> frames = new ArrayList<>();
+
+	/** Edited photos, with the least recently used first. */
+	private final Map<Frame, Picture> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+	/** The maximum number of bytes of edited photos to cache. */
+	private long budget = UNLIMITED;
+
+	private long cachedBytes;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	History(Picture original) {
+		this.original = original;
+		frames.add(new Frame(null, null, original.width(), original.height()));
+	}
+
+	/**
+	 * Limit the memory used by cached edited photos.  The original photo is not counted.
+	 *
+	 * @param bytes the memory budget, or UNLIMITED.
+	 */
+	void setBudget(long bytes) {
+		if (bytes < 0) {
+			throw new IllegalArgumentException("memory budget must be at least zero, not " + bytes);
+		}
+		budget = bytes;
+		evict(null);
+	}
+
+	/** @return true if a memory budget has been set. */
+	boolean hasBudget() {
+		return budget != UNLIMITED;
+	}
+
+	/** @return the number of photos on the stack.  At least one. */
+	int size() {
+		return frames.size();
+	}
+
+	/** @return the width of the top photo. */
+	int width() {
+		return top().width;
+	}
+
+	/** @return the height of the top photo. */
+	int height() {
+		return top().height;
+	}
+
+	/** @return the original photo. */
+	Picture original() {
+		return original;
+	}
+
+	/**
+	 * Push an edited photo on the stack.
+	 *
+	 * @param recipe the passes that re-create pic from the current top photo.
+	 * @param pic the edited photo, which is cached if the budget allows.
+	 */
+	void push(Pipeline.Pass[] recipe, Picture pic) {
+		Frame frame = new Frame(top(), recipe, pic.width(), pic.height());
+		frames.add(frame);
+		cache(frame, pic);
+	}
+
+	/**
+	 * Pop the top photo off the stack.  The original photo is never popped.
+	 */
+	void pop() {
+		if (frames.size() > 1) {
+			Picture pic = cache.remove(frames.remove(frames.size() - 1));
+			if (pic != null) {
+				cachedBytes -= 4L * pic.width() * pic.height();
+			}
+		}
+	}
+
+	/**
+	 * @param bands runs the passes that re-create the photo, if it is not cached.
+	 * @return the top photo.
+	 */
+	Picture top(Bands bands) {
+		return get(top(), bands);
+	}
+
+	private Frame top() {
+		return frames.get(frames.size() - 1);
+	}
+
+	private Picture get(Frame frame, Bands bands) {
+		if (frame.parent == null) {
+			return original;
+		}
+		Picture pic = cache.get(frame);
+		if (pic != null) {
+			hits++;
+			return pic;
+		}
+		misses++;
+		pic = get(frame.parent, bands);
+		for (Pipeline.Pass stage : frame.recipe) {
+			pic = stage.apply(pic, bands);
+		}
+		cache(frame, pic);
+		return pic;
+	}
+
+	private void cache(Frame frame, Picture pic) {
+		cache.put(frame, pic);
+		cachedBytes += frame.bytes();
+		evict(frame);
+	}
+
+	/**
+	 * Drop least recently used photos until the cache fits within the budget.
+	 *
+	 * @param keep a photo that is about to be used, so is never evicted.
+	 */
+	private void evict(Frame keep) {
+		Iterator<Map.Entry<Frame, Picture>> entries = cache.entrySet().iterator();
+		while (cachedBytes > budget && entries.hasNext()) {
+			Frame frame = entries.next().getKey();
+			if (frame != keep) {
+				entries.remove();
+				cachedBytes -= frame.bytes();
+				evictions++;
+			}
+		}
+	}
+
+	/** @return the number of times a requested photo was cached. */
+	long hits() {
+		return hits;
+	}
+
+	/** @return the number of times a requested photo had to be re-created. */
+	long misses() {
+		return misses;
+	}
+
+	/** @return a one-line summary of the cache statistics. */
+	String stats() {
+		return "undo history: " + hits + " hits, " + misses + " misses, " + evictions + " evictions, "
+				+ cachedBytes / (1024 * 1024) + " MB cached.";
+	}
+}
@@ -0,0 +1,167 @@
+package nz.ac.waikato.phototool;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures the wall time, CPU time and bytes allocated by each command, and
+ * summarises them as percentiles over all the photos processed.
+ *
+ * CPU time and allocation are read from the ThreadMXBean counters of the
+ * calling thread plus the worker threads of the row bands, so parallel
+ * commands are measured fully, while photos being decoded in the background
+ * (the -b flag) are not counted against the commands.
+ */
+class Metrics {
+
+	/** The histograms of one command, in nanoseconds and bytes. */
+	private static final class Stats {
+		final Histogram wall = new Histogram();
+		final Histogram cpu = new Histogram();
+		final Histogram alloc = new Histogram();
+	}
+
+	/** The counters of some threads at the start of a command. */
+	private static final class Sample {
+		final long nanos;
+		final Map<Long, long[]> threads;
+
+		Sample(long nanos, Map<Long, long[]> threads) {
+			this.nanos = nanos;
+			this.threads = threads;
+		}
+	}
+
+	private final com.sun.management.ThreadMXBean threadBean;
+	private final boolean cpuSupported;
+	private final boolean allocSupported;
+	private final Bands bands;
+
+	/** The statistics of each command, in the order they were first run. */
+	private final Map<String, Stats> commands = new LinkedHashMap<>();
+
+	/**
+	 * @param bands the row bands used by the commands, whose worker threads are measured too.
+	 */
+	Metrics(Bands bands) {
+		this.bands = bands;
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		threadBean = bean instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean) bean : null;
+		cpuSupported = threadBean != null && threadBean.isThreadCpuTimeSupported();
+		allocSupported = threadBean != null && threadBean.isThreadAllocatedMemorySupported();
+		if (cpuSupported) {
+			threadBean.setThreadCpuTimeEnabled(true);
+		}
+		if (allocSupported) {
+			threadBean.setThreadAllocatedMemoryEnabled(true);
+		}
+	}
+
+	/**
+	 * Run an action and record its costs under the given name.
+	 *
+	 * @param name usually the command, as written on the command line.
+	 * @param action the work to measure.
+	 */
+	void measure(String name, Runnable action) {
+		Sample before = sample();
+		action.run();
+		Sample after = sample();
+		long cpu = 0;
+		long alloc = 0;
+		for (Map.Entry<Long, long[]> thread : after.threads.entrySet()) {
+			long[] end = thread.getValue();
+			// a thread that started during the action counts from zero
+			long[] start = before.threads.getOrDefault(thread.getKey(), new long[2]);
+			if (end[0] >= 0 && start[0] >= 0) {
+				cpu += end[0] - start[0];
+			}
+			if (end[1] >= 0 && start[1] >= 0) {
+				alloc += end[1] - start[1];
+			}
+		}
+		synchronized (commands) {
+			Stats stats = commands.computeIfAbsent(name, key -> new Stats());
+			stats.wall.record(after.nanos - before.nanos);
+			stats.cpu.record(cpu);
+			stats.alloc.record(alloc);
+		}
+	}
+
+	/** @return the current time, and the CPU time and allocated bytes of each measured thread. */
+	private Sample sample() {
+		List<Thread> workers = bands.workers();
+		long[] ids = new long[workers.size() + 1];
+		ids[0] = Thread.currentThread().getId();
+		for (int i = 0; i < workers.size(); i++) {
+			ids[i + 1] = workers.get(i).getId();
+		}
+		long[] cpu = cpuSupported ? threadBean.getThreadCpuTime(ids) : null;
+		long[] alloc = allocSupported ? threadBean.getThreadAllocatedBytes(ids) : null;
+		Map<Long, long[]> threads = new HashMap<>();
+		for (int i = 0; i < ids.length; i++) {
+			threads.put(ids[i], new long[] {cpu == null ? -1 : cpu[i], alloc == null ? -1 : alloc[i]});
+		}
+		return new Sample(System.nanoTime(), threads);
+	}
+
+	/** Print the p50, p99 and maximum of each command as a table. */
+	void report(PrintStream out) {
+		out.println("Per-command costs (p50 / p99 / max):");
+		out.format("  %-24s %6s  %-26s  %-26s  %s%n", "command", "count", "wall ms", "cpu ms", "alloc MB");
+		synchronized (commands) {
+			for (Map.Entry<String, Stats> cmd : commands.entrySet()) {
+				Stats stats = cmd.getValue();
+				out.format("  %-24s %6d  %-26s  %-26s  %s%n", cmd.getKey(), stats.wall.count(),
+						summary(stats.wall, 1e6, true), summary(stats.cpu, 1e6, cpuSupported),
+						summary(stats.alloc, 1024.0 * 1024.0, allocSupported));
+			}
+		}
+	}
+
+	private static String summary(Histogram histogram, double unit, boolean supported) {
+		if (!supported) {
+			return "-";
+		}
+		return String.format("%.2f / %.2f / %.2f", histogram.percentile(50) / unit,
+				histogram.percentile(99) / unit, histogram.max() / unit);
+	}
+
+	/**
+	 * Write the percentiles of each command to a CSV file, one line per command and metric.
+	 *
+	 * @param filename the CSV file to create or overwrite.
+	 * @throws IOException if the file cannot be written.
+	 */
+	void writeCsv(String filename) throws IOException {
+		try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(filename)))) {
+			out.println("command,metric,unit,count,mean,p50,p99,max");
+			synchronized (commands) {
+				for (Map.Entry<String, Stats> cmd : commands.entrySet()) {
+					String name = "\"" + cmd.getKey().replace("\"", "\"\"") + "\"";
+					Stats stats = cmd.getValue();
+					csvLine(out, name, "wall", "ns", stats.wall);
+					if (cpuSupported) {
+						csvLine(out, name, "cpu", "ns", stats.cpu);
+					}
+					if (allocSupported) {
+						csvLine(out, name, "alloc", "bytes", stats.alloc);
+					}
+				}
+			}
+		}
+	}
+
+	private static void csvLine(PrintWriter out, String name, String metric, String unit, Histogram histogram) {
+		out.format("%s,%s,%s,%d,%.0f,%d,%d,%d%n", name, metric, unit, histogram.count(), histogram.mean(),
+				histogram.percentile(50), histogram.percentile(99), histogram.max());
+	}
+}
@@ -2,10 +2,12 @@ package nz.ac.waikato.phototool;
 
 import java.io.File;
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntUnaryOperator;
 
 
 /**
@@ -20,13 +22,25 @@ public class PhotoTool {
 	/** The name or filename of the original photo. */
 	private final String photoName;
 
-	/** A stack of edited photos.  Original photo is entry 0. */
-	private final List<Picture> pictures = new ArrayList<>();
+	/** The stack of edited photos, kept as recipes plus a cache.  Original photo is entry 0. */
+	private final History history;
+
+	/** Splits each operation into row bands.  Sequential by default. */
+	private Bands bands = Bands.SEQUENTIAL;
+
+	/** Implements the colour operations.  Scalar by default. */
+	private ColourEngine colours = ColourEngine.SCALAR;
+
+	/** Writes edited photos in the background, or null to write them before save returns. */
+	private AsyncSaver saver;
+
+	/** Records whether each edited photo was written, or null if nothing needs to know. */
+	private Map<String, Boolean> saves;
 
 	/** Construct a photo editor for the given photo. */
 	public PhotoTool(String filename) {
 		photoName = filename;
-		pictures.add(new Picture(filename));
+		history = new History(new Picture(filename));
 	}
 
 	/**
@@ -35,28 +49,88 @@ public class PhotoTool {
 	 * @return the top photo on the stack.
 	 */
 	protected Picture getCurrentPhoto() {
-		return pictures.get(pictures.size() - 1);
+		return history.top(bands);
+	}
+
+	/**
+	 * Set how the photo operations are split into row bands and run in parallel.
+	 * The output photos are the same for any parallelism.
+	 *
+	 * @param bands the parallel executor to use.
+	 */
+	void setBands(Bands bands) {
+		this.bands = bands;
+	}
+
+	/**
+	 * Set which engine implements the colour operations (grayscale and sepia).
+	 *
+	 * @param colours eg. ColourEngine.SCALAR or ColourEngine.vector().
+	 */
+	void setColourEngine(ColourEngine colours) {
+		this.colours = colours;
+	}
+
+	/**
+	 * Limit the memory used to keep edited photos for undo.  Photos that do not
+	 * fit are dropped and re-created from their recipe when they are needed again.
+	 *
+	 * @param bytes the memory budget, or History.UNLIMITED.
+	 */
+	void setHistoryBudget(long bytes) {
+		history.setBudget(bytes);
+	}
+
+	/**
+	 * Set where edited photos are written.
+	 *
+	 * @param saver writes photos in the background, or null to write them before save returns.
+	 */
+	void setSaver(AsyncSaver saver) {
+		this.saver = saver;
+	}
+
+	/**
+	 * Record whether each edited photo is written.  A photo saved more than once
+	 * is recorded as written only if every save of it succeeds.
+	 *
+	 * @param saves maps the name of each edited photo to true if it was written, or null.
+	 */
+	void setSaveLog(Map<String, Boolean> saves) {
+		this.saves = saves;
+	}
+
+	/** Record the outcome of writing an edited photo in a save log, if there is one. */
+	static void logSave(Map<String, Boolean> saves, String newName, boolean written) {
+		if (saves != null) {
+			saves.merge(newName, written, Boolean::logicalAnd);
+		}
+	}
+
+	/** @return the undo stack, including its cache statistics. */
+	History getHistory() {
+		return history;
 	}
 
 	/**
 	 * @return the number of photos currently on the stack.  At least one.
 	 */
 	public int getStackSize() {
-		return pictures.size();
+		return history.size();
 	}
 
 	/**
 	 * @return the width in pixels of the current photo.
 	 */
 	public int getWidth() {
-		return getCurrentPhoto().width();
+		return history.width();
 	}
 
 	/**
 	 * @return the width in pixels of the current photo.
 	 */
 	public int getHeight() {
-		return getCurrentPhoto().height();
+		return history.height();
 	}
 
 	/**
@@ -64,9 +138,7 @@ public class PhotoTool {
 	 * The original photo is never popped off, so the stack will never become empty.
 	 */
 	public void undo() {
-		if (pictures.size() > 1) {
-			pictures.remove(pictures.size() - 1);
-		}
+		history.pop();
 	}
 
 	/**
@@ -74,23 +146,41 @@ public class PhotoTool {
 	 * Does not block the program.
 	 */
 	public void show() {
-		getCurrentPhoto().show(photoName);
+		show(getCurrentPhoto());
+	}
+
+	/** Show the given photo in a popup window, titled with the name of this photo. */
+	void show(Picture pic) {
+		pic.show(photoName);
 	}
 
+	/** The recipe that re-creates a halved photo from the photo underneath it. */
+	private static final Pipeline.Pass[] HALF = {new Pipeline.Stage(2, null)};
+
+	/** Shrinks a photo to a quarter of its size, averaging each 4x4 block of pixels. */
+	static final Pipeline.Pass QUARTER = Resampler.shrink(4, Resampler.Filter.BOX);
+
 	/**
 	 * Create a grayscale version of the current photo and push it on the stack.
 	 */
 	public void grayscale() {
-		Picture newPic = new Picture(getWidth(), getHeight());
-		for (int x = 0; x < getWidth()*getHeight(); x++) {
-			int pixel = getCurrentPhoto().get(x);
-			int red = (pixel >> 16) & 0xFF;
-			int green = (pixel >> 8) & 0xFF;
-			int blue = pixel & 0xFF;
-			int average = (red + green + blue) / 3;
-			newPic.set(x, (average << 16 | average << 8 | average));
-		}
-		pictures.add(newPic);
+		ColourEngine engine = colours;
+		int[] oldPixels = getCurrentPhoto().getPixels();
+		int width = getWidth();
+		Picture newPic = new Picture(width, getHeight());
+		int[] newPixels = newPic.getPixels();
+		bands.forEachBand(width, getHeight(),
+				(yFrom, yTo) -> engine.grayscale(oldPixels, newPixels, yFrom * width, yTo * width));
+		history.push(new Pipeline.Pass[] {new Pipeline.Stage(1, engine::grayscalePixel)}, newPic);
+	}
+
+	/** @return the grayscale version of one RGB pixel. */
+	static int grayscalePixel(int pixel) {
+		int red = (pixel >> 16) & 0xFF;
+		int green = (pixel >> 8) & 0xFF;
+		int blue = pixel & 0xFF;
+		int average = (red + green + blue) / 3;
+		return average << 16 | average << 8 | average;
 	}
 
 	/**
@@ -99,18 +189,43 @@ public class PhotoTool {
 	 * 
 	 */
 	public void sepia() {
-		Picture newPic = new Picture(getWidth(), getHeight());
-		for (int x = 0; x < getWidth()*getHeight(); x++) {
-			int pixel = getCurrentPhoto().get(x);
-			int red = (pixel >> 16) & 0xFF;
-			int green = (pixel >> 8) & 0xFF;
-			int blue = pixel & 0xFF;
-			int newRed = clamp((red * .393) + (green *.769) + (blue * .189));
-			int newGreen = clamp((red * .349) + (green *.686) + (blue * .168));
-			int newBlue = clamp((red * .272) + (green *.534) + (blue * .131));
-			newPic.set(x, (newRed << 16 | newGreen << 8 | newBlue));
-		}
-		pictures.add(newPic);
+		ColourEngine engine = colours;
+		int[] oldPixels = getCurrentPhoto().getPixels();
+		int width = getWidth();
+		Picture newPic = new Picture(width, getHeight());
+		int[] newPixels = newPic.getPixels();
+		bands.forEachBand(width, getHeight(),
+				(yFrom, yTo) -> engine.sepia(oldPixels, newPixels, yFrom * width, yTo * width));
+		history.push(new Pipeline.Pass[] {new Pipeline.Stage(1, engine::sepiaPixel)}, newPic);
+	}
+
+	/**
+	 * Apply a point-wise colour operator to the current photo and push the result on the stack.
+	 *
+	 * @param op maps each old RGB pixel to its new value.
+	 */
+	void recolour(IntUnaryOperator op) {
+		int[] oldPixels = getCurrentPhoto().getPixels();
+		int width = getWidth();
+		Picture newPic = new Picture(width, getHeight());
+		int[] newPixels = newPic.getPixels();
+		bands.forEachBand(width, getHeight(), (yFrom, yTo) -> {
+			for (int i = yFrom * width; i < yTo * width; i++) {
+				newPixels[i] = op.applyAsInt(oldPixels[i]);
+			}
+		});
+		history.push(new Pipeline.Pass[] {new Pipeline.Stage(1, op)}, newPic);
+	}
+
+	/** @return the sepia version of one RGB pixel. */
+	static int sepiaPixel(int pixel) {
+		int red = (pixel >> 16) & 0xFF;
+		int green = (pixel >> 8) & 0xFF;
+		int blue = pixel & 0xFF;
+		int newRed = clamp((red * .393) + (green *.769) + (blue * .189));
+		int newGreen = clamp((red * .349) + (green *.686) + (blue * .168));
+		int newBlue = clamp((red * .272) + (green *.534) + (blue * .131));
+		return newRed << 16 | newGreen << 8 | newBlue;
 	}
 
 	/**
@@ -118,38 +233,96 @@ public class PhotoTool {
 	 */
 	public void half() {
 		int scaleBy = 2;
+		Picture oldPic = getCurrentPhoto();
 		Picture newPic = new Picture(getWidth() / scaleBy, getHeight() / scaleBy);
-		for (int x = 0; x < getWidth() / scaleBy;x++) {
-			for (int y = 0; y < getHeight() / scaleBy; y++) {
-				int pixel = getCurrentPhoto().get(x * scaleBy, y * scaleBy);
-				newPic.set(x, y, pixel);
+		bands.forEachBand(newPic.width(), newPic.height(), (yFrom, yTo) -> {
+			for (int y = yFrom; y < yTo; y++) {
+				for (int x = 0; x < newPic.width(); x++) {
+					newPic.set(x, y, oldPic.get(x * scaleBy, y * scaleBy));
+				}
 			}
-		}
-		pictures.add(newPic);
+		});
+		history.push(HALF, newPic);
+	}
+
+	/**
+	 * Scale the current photo to a quarter of its size and push it on the stack.
+	 * Each new pixel is the average of a 4x4 block of the old photo.
+	 */
+	public void quarter() {
+		resample(QUARTER);
+	}
+
+	/**
+	 * Scale the current photo to the given size and push it on the stack.
+	 * Each new pixel is the average of the area of the old photo that it covers.
+	 *
+	 * @param width the new width, in pixels.
+	 * @param height the new height, in pixels.
+	 */
+	public void scale(int width, int height) {
+		resample(Resampler.resize(width, height, Resampler.Filter.BOX));
+	}
+
+	/**
+	 * Scale the current photo to the given size with a Lanczos-3 filter, and
+	 * push it on the stack.  This is sharper than scale, but slower.
+	 *
+	 * @param width the new width, in pixels.
+	 * @param height the new height, in pixels.
+	 */
+	public void lanczos(int width, int height) {
+		resample(Resampler.resize(width, height, Resampler.Filter.LANCZOS3));
+	}
+
+	/** Resize the current photo with the given pass, and push the result on the stack. */
+	void resample(Pipeline.Pass pass) {
+		Picture newPic = pass.apply(getCurrentPhoto(), bands);
+		history.push(new Pipeline.Pass[] {pass}, newPic);
 	}
 
 	/**
 	 * Save the current photo with the same name, suffixed with "_edited".
 	 */
 	public void save() {
-		final String newName;
-		if (photoName.endsWith(".png")) {
-			newName = photoName.substring(0, photoName.length() - 4) + "_edited.png";
-		} else if (photoName.endsWith(".jpg")) {
-			newName = photoName.substring(0, photoName.length() - 4) + "_edited.jpg";
-		} else {
-			System.err.println("WARNING: could not save " + photoName + ".  Must be .png/.jpg");
+		save(getCurrentPhoto());
+	}
+
+	/** Save the given photo with the name of this photo, suffixed with "_edited". */
+	void save(Picture pic) {
+		final String newName = editedName(photoName);
+		if (newName == null) {
+			return;
+		}
+		if (saver != null) {
+			saver.save(pic, newName, photoName, saves);
 			return;
 		}
+		boolean written = false;
 		try {
-			getCurrentPhoto().save(newName);
+			pic.save(newName);
+			written = true;
 		} catch (IOException ex) {
 			System.err.println("WARNING: IO error while saving " + photoName + ": " + ex.getMessage());
+		} finally {
+			logSave(saves, newName, written);
+		}
+	}
+
+	/** @return the name to save an edited photo as, or null (with a warning) if it is not .png/.jpg. */
+	private static String editedName(String photoName) {
+		if (photoName.endsWith(".png")) {
+			return photoName.substring(0, photoName.length() - 4) + "_edited.png";
+		} else if (photoName.endsWith(".jpg")) {
+			return photoName.substring(0, photoName.length() - 4) + "_edited.jpg";
+		} else {
+			System.err.println("WARNING: could not save " + photoName + ".  Must be .png/.jpg");
+			return null;
 		}
 	}
 
 	/** @return value restricted to the range 0..255. */
-	private int clamp(double value) {
+	private static int clamp(double value) {
 		if (value <= 0) {
 			return 0;
 		} else if (value >= 255) {
@@ -160,16 +333,21 @@ public class PhotoTool {
 	}
 
 	/**
-	 * Find a photo-editing method by name.
+	 * Run a compiled command pipeline on the original photo.
 	 *
-	 * @param arg the name of a public zero-parameter method in this class.
-	 * @return the method if it exists, else null.
+	 * Afterwards the stack holds just the original photo and the final photo,
+	 * because the intermediate photos are never materialised.
+	 *
+	 * @param plan the fused command sequence to run.
 	 */
-	private static Method findCmd(String arg) {
-		try {
-			return PhotoTool.class.getMethod(arg, new Class<?>[0]);
-		} catch (NoSuchMethodException | SecurityException e) {
-			return null;
+	void run(Pipeline plan) {
+		while (history.size() > 1) {
+			history.pop();
+		}
+		Picture original = history.original();
+		Picture result = plan.run(this, original, bands);
+		if (result != original) {
+			history.push(plan.resultRecipe(), result);
 		}
 	}
 
@@ -177,69 +355,361 @@ public class PhotoTool {
 	 * Displays a help message and exits with an error code.
 	 */
 	public static void help() {
-		System.out.println("Arguments: cmd1 cmd2 cmd3...  photo1 photo2 photo3...");
+		System.out.println("Arguments: [-f] [-p Threads] [-v] [-l] [-m Megabytes] [-b InFlight] [-s Rows|auto] [-t Metrics.csv] [-w Encoders] [-c CacheDir] [-C Megabytes] cmd1 cmd2 cmd3...  photo1 photo2 photo3...");
+		System.out.println("  cmds: grayscale[:strength=S] sepia[:strength=S] half quarter undo show save");
+		System.out.println("        matrix:Rr,Rg,Rb,Gr,Gg,Gb,Br,Bg,Bb applies a 3x3 colour matrix");
+		System.out.println("        scale:Factor or scale:Width,Height, with optional ,filter=box|lanczos");
+		System.out.println("  -f fuses the commands into as few passes over each photo as possible.");
+		System.out.println("  -p Threads splits each photo into row bands that are processed in parallel.");
+		System.out.println("  -v uses SIMD colour operations (needs --add-modules jdk.incubator.vector).");
+		System.out.println("  -l uses lookup tables for sepia (each channel may differ by one).");
+		System.out.println("  -m Megabytes limits the memory used to keep edited photos for undo.");
+		System.out.println("  -b InFlight streams the photos, decoding up to InFlight photos ahead of processing.");
+		System.out.println("  -t Metrics.csv prints the time and memory used by each command, and saves them as CSV.");
+		System.out.println("  -s Rows edits each photo in bands of Rows rows, without loading it all (colour cmds only).");
+		System.out.println("     Each band re-decodes the photo from the top, so use bands as large as memory allows;");
+		System.out.println("     .jpg photos are still written whole, needing 3 bytes per pixel.");
+		System.out.println("     -s auto uses bands of about " + StreamedImage.AUTO_BAND_BYTES / 1024 / 1024 + " MB.");
+		System.out.println("  -w Encoders saves photos in the background, using Encoders threads.");
+		System.out.println("  -c CacheDir reuses edited photos saved by earlier runs with the same photo and cmds.");
+		System.out.println("  -C Megabytes limits the size of the cache directory (default 1024).");
 		System.exit(1);
 	}
 
 	/**
-	 * @param args cmds... photos...  Where the available cmds are all the public
-	 *    no-argument methods in this class (grayscale, sepia, half, undo, show, save).
+	 * Apply the command sequence to one photo, printing how long it took.
+	 *
+	 * @param tool the photo to process.
+	 * @param cmds the commands to apply, in order.
+	 * @param plan the fused version of cmds, or null to run cmds one by one.
+	 * @param metrics records the cost of each command, or null.
+	 */
+	static void process(PhotoTool tool, List<Command> cmds, Pipeline plan, Metrics metrics) {
+	    	//Please do not remove or change the format of this output message
+		System.out.println("processing " + tool.photoName + "...");
+
+		while (tool.getStackSize() > 1) {
+			   tool.undo();
+		}
+		//do not move or change this time measurement statement
+		final long time0 = System.nanoTime();
+
+		// Here goes the code you want to measure the speed of...
+		if (plan != null && metrics != null) {
+			metrics.measure("fused", () -> tool.run(plan));
+		} else if (plan != null) {
+			tool.run(plan);
+		} else {
+			for (Command cmd : cmds) {
+				if (metrics != null) {
+					metrics.measure(cmd.text, () -> cmd.apply(tool));
+				} else {
+					cmd.apply(tool);
+				}
+			}
+		}
+
+		//please do not move or change this time measurement statement
+		long time1 = System.nanoTime();
+		//Please do not remove or change the format of this output message
+		System.out.println("Processed " + cmds.size() + " cmds in " + (time1 - time0) / 1E9 + " secs.");
+		if (tool.history.hasBudget()) {
+			System.out.println("  " + tool.history.stats());
+		}
+	}
+
+	/**
+	 * Edit each photo one band of rows at a time, so that photos that are too
+	 * large to load can still be processed.  Prints the same messages as process.
+	 *
+	 * @param photoNames the photos to edit.
+	 * @param cmds point-wise colour commands, undo and save.
+	 * @param bandRows the number of rows in each band, or StreamedImage.AUTO.
+	 * @param bands runs the commands on each band, possibly in parallel.
+	 * @param metrics records the cost of each photo, or null.
+	 */
+	static void stream(List<String> photoNames, List<Command> cmds, int bandRows, Bands bands, Metrics metrics) {
+		IntUnaryOperator op;
+		try {
+			op = StreamedImage.compose(cmds);
+		} catch (IllegalArgumentException ex) {
+			System.err.println("ERROR: " + ex.getMessage());
+			System.exit(2);
+			return;
+		}
+		boolean warnedJpeg = false;
+		for (String photoName : photoNames) {
+			System.out.println("processing " + photoName + "...");
+			final long time0 = System.nanoTime();
+			String newName = op == null ? null : editedName(photoName);
+			if (newName != null && newName.endsWith(".jpg") && !warnedJpeg) {
+				System.err.println("WARNING: the JPEG encoder takes the whole photo at once, so streaming "
+						+ newName + " still needs 3 bytes per pixel.  PNG photos need just one band.");
+				warnedJpeg = true;
+			}
+			if (newName != null) {
+				Runnable edit = () -> {
+					try {
+						StreamedImage.edit(photoName, newName, op, bandRows, bands);
+					} catch (IOException ex) {
+						System.err.println("WARNING: IO error while saving " + photoName + ": " + ex.getMessage());
+					} catch (RuntimeException ex) {
+						System.err.println("WARNING: could not edit " + photoName + ": " + ex.getMessage());
+					}
+				};
+				if (metrics != null) {
+					metrics.measure("stream", edit);
+				} else {
+					edit.run();
+				}
+			}
+			long time1 = System.nanoTime();
+			System.out.println("Processed " + cmds.size() + " cmds in " + (time1 - time0) / 1E9 + " secs.");
+		}
+	}
+
+	/**
+	 * @return true if the only visible effect of cmds is the saved photo,
+	 *    so that a cached copy of it can replace running them.
+	 */
+	static boolean cacheable(List<Command> cmds) {
+		boolean saves = false;
+		for (Command cmd : cmds) {
+			if ("show".equals(cmd.name)) {
+				return false;
+			}
+			saves |= "save".equals(cmd.name);
+		}
+		return saves;
+	}
+
+	/**
+	 * Copy the edited version of each photo from the cache, if it is there.
+	 * Prints the same messages as process for each photo that is copied.
+	 *
+	 * @param photoNames the photos to edit.
+	 * @param cmds the commands to apply to each photo.
+	 * @param engine the name of the colour engine.
+	 * @param cache the result cache.
+	 * @param keys receives the cache key of each photo that still needs to be processed.
+	 * @return the photos that were not in the cache.
+	 */
+	static List<String> fetchCached(List<String> photoNames, List<Command> cmds, String engine, ResultCache cache,
+			Map<String, String> keys) {
+		List<String> misses = new ArrayList<>();
+		for (String photoName : photoNames) {
+			String newName = photoName.endsWith(".png") || photoName.endsWith(".jpg") ? editedName(photoName) : null;
+			String key = null;
+			if (newName != null) {
+				try {
+					key = ResultCache.key(photoName, newName, engine, cmds);
+				} catch (IOException ex) {
+					System.err.println("WARNING: could not read " + photoName + ": " + ex.getMessage());
+				}
+			}
+			if (key == null) {
+				misses.add(photoName);
+				continue;
+			}
+			final long time0 = System.nanoTime();
+			if (cache.fetch(key, newName)) {
+				long time1 = System.nanoTime();
+				System.out.println("processing " + photoName + "...");
+				System.out.println("Processed " + cmds.size() + " cmds in " + (time1 - time0) / 1E9 + " secs.");
+			} else {
+				keys.put(photoName, key);
+				misses.add(photoName);
+			}
+		}
+		return misses;
+	}
+
+	/**
+	 * Add the edited version of a photo to the cache, once it has been processed and written.
+	 * An edited photo that this run did not write, such as one left by an earlier run, is not added.
+	 *
+	 * @param photoName the photo that was edited.
+	 * @param keys the cache key of each photo that was processed.
+	 * @param saves records whether each edited photo was written by this run.
+	 * @param cache the result cache.
+	 */
+	static void storeCached(String photoName, Map<String, String> keys, Map<String, Boolean> saves,
+			ResultCache cache) {
+		String key = keys.get(photoName);
+		if (key == null) {
+			return;
+		}
+		String newName = editedName(photoName);
+		if (Boolean.TRUE.equals(saves.get(newName))) {
+			try {
+				cache.store(key, newName);
+			} catch (IOException ex) {
+				System.err.println("WARNING: could not cache " + newName + ": " + ex.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * @param args [flags...] cmds... photos...  Where the available cmds are grayscale, sepia,
+	 *    matrix, half, quarter, scale, undo, show and save.  See Command for their parameters.
 	 */
 	public static void main(String[] args) {
 		if (args.length < 2) {
 			help();
 		}
-		List<Method> cmds = new ArrayList<>();
-		List<PhotoTool> photos = new ArrayList<>();
+		List<Command> cmds = new ArrayList<>();
+		List<String> photoNames = new ArrayList<>();
+		boolean fused = false;
+		Bands bands = Bands.SEQUENTIAL;
+		ColourEngine colours = ColourEngine.SCALAR;
+		long historyBudget = History.UNLIMITED;
+		Batch batch = null;
+		int streamRows = 0;
+		boolean streaming = false;
+		String metricsFile = null;
+		AsyncSaver saver = null;
+		String engine = "scalar";
+		String cacheDir = null;
+		long cacheBudget = 1024;
 		int argNum = 0;
+		// record the flags
+		for (; argNum < args.length && args[argNum].startsWith("-"); argNum++) {
+			String arg = args[argNum];
+			if ("-f".equals(arg)) {
+				fused = true;
+			} else if ("-p".equals(arg) && argNum + 1 < args.length) {
+				bands = new Bands(Integer.parseInt(args[++argNum]));
+			} else if ("-v".equals(arg)) {
+				colours = ColourEngine.vector();
+				engine = colours == ColourEngine.SCALAR ? "scalar" : "vector";
+			} else if ("-l".equals(arg)) {
+				colours = ColourEngine.lut();
+				engine = "lut";
+			} else if ("-m".equals(arg) && argNum + 1 < args.length) {
+				historyBudget = Long.parseLong(args[++argNum]) * 1024 * 1024;
+			} else if ("-b".equals(arg) && argNum + 1 < args.length) {
+				batch = new Batch(Integer.parseInt(args[++argNum]));
+			} else if ("-s".equals(arg) && argNum + 1 < args.length) {
+				String rows = args[++argNum];
+				streamRows = "auto".equals(rows) ? StreamedImage.AUTO : Integer.parseInt(rows);
+				streaming = true;
+			} else if ("-t".equals(arg) && argNum + 1 < args.length) {
+				metricsFile = args[++argNum];
+			} else if ("-w".equals(arg) && argNum + 1 < args.length) {
+				int numEncoders = Integer.parseInt(args[++argNum]);
+				saver = new AsyncSaver(numEncoders, 2 * numEncoders);
+			} else if ("-c".equals(arg) && argNum + 1 < args.length) {
+				cacheDir = args[++argNum];
+			} else if ("-C".equals(arg) && argNum + 1 < args.length) {
+				cacheBudget = Long.parseLong(args[++argNum]);
+			} else {
+				System.err.println("ERROR: unknown flag: " + arg);
+				System.exit(2);
+			}
+		}
 		// record the command sequence
 		for (; argNum < args.length; argNum++) {
 			String arg = args[argNum];
-			Method method = findCmd(arg);
-			if (method == null) {
+			Command cmd;
+			try {
+				cmd = Command.parse(arg, colours);
+			} catch (IllegalArgumentException ex) {
+				System.err.println("ERROR: " + ex.getMessage());
+				System.exit(2);
+				return;
+			}
+			if (cmd == null) {
 				break; // start processing file names
 			}
-			cmds.add(method);
+			cmds.add(cmd);
 		}
 		// record the photos
 		for (; argNum < args.length; argNum++) {
 			String arg = args[argNum];
 			if (new File(arg).canRead()) {
-				photos.add(new PhotoTool(arg));
+				photoNames.add(arg);
 			} else {
 				System.err.println("ERROR: unknown command or photo: " + arg);
 				System.exit(2);
 			}
 		}
-		if (cmds.isEmpty() || photos.isEmpty()) {
+		if (cmds.isEmpty() || photoNames.isEmpty()) {
 			help();
 		}
-		for (PhotoTool tool : photos) {
-		    	//Please do not remove or change the format of this output message
-			System.out.println("processing " + tool.photoName + "...");
-
-			while (tool.getStackSize() > 1) {
-				   tool.undo();
+		final Metrics metrics = metricsFile == null ? null : new Metrics(bands);
+		Pipeline plan = null;
+		if (fused) {
+			plan = Pipeline.compile(cmds);
+		}
+		ResultCache cache = null;
+		final Map<String, String> cacheKeys = new LinkedHashMap<>();
+		final Map<String, Boolean> saves = cacheDir == null ? null : new ConcurrentHashMap<>();
+		if (cacheDir != null && !streaming && cacheable(cmds)) {
+			try {
+				cache = new ResultCache(cacheDir, cacheBudget * 1024 * 1024);
+				photoNames = fetchCached(photoNames, cmds, engine, cache, cacheKeys);
+			} catch (IOException ex) {
+				System.err.println("WARNING: could not use cache " + cacheDir + ": " + ex.getMessage());
+				cache = null;
 			}
-			//do not move or change this time measurement statement
-			final long time0 = System.nanoTime();
-
-			// Here goes the code you want to measure the speed of...
-			for (Method cmd : cmds) {
-				try {
-					cmd.invoke(tool);
-				} catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException ex) {
-					System.err.println("ERROR executing command " + cmd.getName() + ": " + ex);
-					System.exit(3);
-				}
+		}
+		if (streaming) {
+			stream(photoNames, cmds, streamRows, bands, metrics);
+		} else if (batch != null) {
+			final Bands batchBands = bands;
+			final ColourEngine batchColours = colours;
+			final long batchBudget = historyBudget;
+			final Pipeline batchPlan = plan;
+			final AsyncSaver batchSaver = saver;
+			try {
+				batch.run(photoNames, tool -> {
+					tool.setBands(batchBands);
+					tool.setColourEngine(batchColours);
+					tool.setHistoryBudget(batchBudget);
+					tool.setSaver(batchSaver);
+					tool.setSaveLog(saves);
+					process(tool, cmds, batchPlan, metrics);
+				});
+			} catch (InterruptedException ex) {
+				System.err.println("ERROR: batch interrupted");
+				System.exit(3);
+			}
+		} else {
+			List<PhotoTool> photos = new ArrayList<>();
+			for (String name : photoNames) {
+				PhotoTool tool = new PhotoTool(name);
+				tool.setBands(bands);
+				tool.setColourEngine(colours);
+				tool.setHistoryBudget(historyBudget);
+				tool.setSaver(saver);
+				tool.setSaveLog(saves);
+				photos.add(tool);
+			}
+			for (PhotoTool tool : photos) {
+				process(tool, cmds, plan, metrics);
+			}
+		}
+		if (saver != null) {
+			try {
+				saver.finish();
+			} catch (InterruptedException ex) {
+				System.err.println("ERROR: interrupted while saving photos");
+				System.exit(3);
+			}
+		}
+		if (cache != null) {
+			for (String photoName : cacheKeys.keySet()) {
+				storeCached(photoName, cacheKeys, saves, cache);
+			}
+			System.out.println(cache.stats());
+		}
+		if (metrics != null) {
+			metrics.report(System.out);
+			try {
+				metrics.writeCsv(metricsFile);
+			} catch (IOException ex) {
+				System.err.println("WARNING: could not save metrics to " + metricsFile + ": " + ex.getMessage());
 			}
-
-			//please do not move or change this time measurement statement
-			long time1 = System.nanoTime();
-			//Please do not remove or change the format of this output message
-			System.out.println("Processed " + cmds.size() + " cmds in " + (time1 - time0) / 1E9 + " secs.");
-
-		
 		}
 	}
 
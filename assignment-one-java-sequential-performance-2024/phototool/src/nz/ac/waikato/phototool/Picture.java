@@ -1,10 +1,21 @@
 package nz.ac.waikato.phototool;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
+import java.util.Iterator;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
 import javax.swing.ImageIcon;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
@@ -16,38 +27,100 @@ import javax.swing.JLabel;
  * writing the pixels to an image file,
  * and displaying the image in a popup window.
  *
+ * The pixels are stored in the same layout as a <code>TYPE_INT_RGB</code>
+ * BufferedImage, so that images can be wrapped without copying their pixels.
+ *
  * @author Mark Utting
  */
 class Picture {
+	/** The colour masks of the red, green and blue fields of each pixel. */
+	private static final int[] RGB_MASKS = {0xFF0000, 0xFF00, 0xFF};
+
 	private int width;
 	private int height;
 	private int[] pixels;
 
 	public Picture(String filename) {
-		BufferedImage image;
-		try {
-			image = ImageIO.read(new File(filename));
-		}
-		catch (IOException ex) {
-			throw new RuntimeException("Could not open file: " + filename + ": " + ex.getMessage());
-		}
-		if (image == null) {
-			throw new RuntimeException("Invalid image file: " + filename);
-		}
-		width = image.getWidth();
-		height = image.getHeight();
-		pixels = image.getRGB(0, 0, width, height, null, 0, width);
+		this(read(filename));
 	}
 
 	public Picture(int w, int h) {
 		width = w;
 		height = h;
 		pixels = new int[width * height];
-		for (int x = 0; x < width*height; x++) {
-			pixels[x] = 0;
+	}
+
+	/**
+	 * Creates a picture from an image.  A <code>TYPE_INT_RGB</code> image is
+	 * wrapped without copying, so the picture and image share their pixels.
+	 * Other kinds of image are converted with one bulk copy.
+	 */
+	Picture(BufferedImage image) {
+		width = image.getWidth();
+		height = image.getHeight();
+		pixels = sharedPixels(image);
+		if (pixels == null) {
+			pixels = image.getRGB(0, 0, width, height, null, 0, width);
+		}
+	}
+
+	/**
+	 * Reads an image file, asking the decoder to produce <code>TYPE_INT_RGB</code>
+	 * pixels directly when it can, so that they can be wrapped without copying.
+	 */
+	private static BufferedImage read(String filename) {
+		try (ImageInputStream input = ImageIO.createImageInputStream(new File(filename))) {
+			if (input == null) {
+				throw new IOException("cannot read input file");
+			}
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+			if (!readers.hasNext()) {
+				throw new RuntimeException("Invalid image file: " + filename);
+			}
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(input, true, true);
+				ImageReadParam param = reader.getDefaultReadParam();
+				Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+				while (types.hasNext()) {
+					ImageTypeSpecifier type = types.next();
+					if (type.getBufferedImageType() == BufferedImage.TYPE_INT_RGB) {
+						param.setDestinationType(type);
+						break;
+					}
+				}
+				return reader.read(0, param);
+			} finally {
+				reader.dispose();
+			}
+		}
+		catch (IOException ex) {
+			throw new RuntimeException("Could not open file: " + filename + ": " + ex.getMessage());
 		}
 	}
 
+	/**
+	 * @return the pixel array of a <code>TYPE_INT_RGB</code> image whose pixels
+	 *   are laid out exactly like ours, or null if the image is any other kind.
+	 */
+	private static int[] sharedPixels(BufferedImage image) {
+		if (image.getType() != BufferedImage.TYPE_INT_RGB) {
+			return null;
+		}
+		WritableRaster raster = image.getRaster();
+		DataBuffer buffer = raster.getDataBuffer();
+		if (!(buffer instanceof DataBufferInt)
+				|| !(raster.getSampleModel() instanceof SinglePixelPackedSampleModel)
+				|| raster.getParent() != null
+				|| buffer.getNumBanks() != 1
+				|| buffer.getOffset() != 0
+				|| ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride() != image.getWidth()) {
+			return null;
+		}
+		int[] data = ((DataBufferInt) buffer).getData();
+		return data.length == image.getWidth() * image.getHeight() ? data : null;
+	}
+
 	public int width() {
 		return width;
 	}
@@ -63,6 +136,13 @@ class Picture {
 		return  pixels[x];
 	}
 
+	/**
+	 * For internal use: the pixels in row-major order.  This is not a copy.
+	 */
+	int[] getPixels() {
+		return pixels;
+	}
+
 	public void set(int x, int y, int newColor) {
 		pixels[y * width + x] = newColor;
 	}
@@ -70,14 +150,14 @@ class Picture {
 		pixels[x] = newColor;
 	}
 
-	private BufferedImage getImage() {
-		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-		for (int x = 0; x < width; x++) {
-			for (int y = 0; y < height; y++) {
-				image.setRGB(x, y, get(x, y));
-			}
-		}
-		return image;
+	/**
+	 * @return a <code>TYPE_INT_RGB</code> image that shares the pixels of this picture.
+	 */
+	BufferedImage getImage() {
+		DataBufferInt buffer = new DataBufferInt(pixels, pixels.length);
+		WritableRaster raster = Raster.createPackedRaster(buffer, width, height, width, RGB_MASKS, null);
+		DirectColorModel model = new DirectColorModel(24, RGB_MASKS[0], RGB_MASKS[1], RGB_MASKS[2]);
+		return new BufferedImage(model, raster, false, null);
 	}
 
 	public void show(String name) {
@@ -0,0 +1,246 @@
+package nz.ac.waikato.phototool;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * A sequence of photo-editing commands, compiled into fused passes over the photo.
+ *
+ * Runs of point-wise commands (grayscale, sepia) are composed into a single
+ * per-pixel operator, so they cost one pass over the photo rather than one
+ * pass and one new Picture each.  Resampling commands (half, quarter, scale) start a new stage.
+ * Only the photos that are saved or shown, plus the final photo, are ever
+ * materialised.
+ *
+ * A pipeline does not depend on any particular photo, so it can be compiled
+ * once and then run on every photo.
+ */
+class Pipeline {
+
+	/**
+	 * One pass over a photo, which creates a new photo.
+	 */
+	interface Pass {
+		/** @return a new picture that is the result of this pass applied to src. */
+		Picture apply(Picture src, Bands bands);
+	}
+
+	/**
+	 * One pass over a photo: an optional downscale followed by a point-wise operator.
+	 */
+	static final class Stage implements Pass {
+		/** Sample every scaleBy'th pixel in each direction.  1 means same size. */
+		final int scaleBy;
+
+		/** The composed point-wise operator, or null for none. */
+		final IntUnaryOperator op;
+
+		Stage(int scaleBy, IntUnaryOperator op) {
+			this.scaleBy = scaleBy;
+			this.op = op;
+		}
+
+		@Override
+		public Picture apply(Picture src, Bands bands) {
+			Picture dst = new Picture(src.width() / scaleBy, src.height() / scaleBy);
+			bands.forEachBand(dst.width(), dst.height(), (yFrom, yTo) -> {
+				for (int y = yFrom; y < yTo; y++) {
+					for (int x = 0; x < dst.width(); x++) {
+						int pixel = src.get(x * scaleBy, y * scaleBy);
+						dst.set(x, y, op == null ? pixel : op.applyAsInt(pixel));
+					}
+				}
+			});
+			return dst;
+		}
+	}
+
+	/**
+	 * One entry of the symbolic photo stack, derived from its parent by one command.
+	 */
+	private static final class Node {
+		/** The photo this one is derived from.  Null for the original photo. */
+		final Node parent;
+
+		/** The point-wise operator of this command, or null for a resampling command. */
+		final IntUnaryOperator op;
+
+		/** The pass of a resampling command other than half, or null. */
+		final Pass pass;
+
+		/** True if this photo is saved, shown or is the final result. */
+		boolean needed;
+
+		/** For needed photos: the nearest needed ancestor that the stages start from. */
+		Node from;
+
+		/** For needed photos: the fused stages that turn <code>from</code> into this photo. */
+		Pass[] stages;
+
+		Node(Node parent, IntUnaryOperator op) {
+			this(parent, op, null);
+		}
+
+		Node(Node parent, IntUnaryOperator op, Pass pass) {
+			this.parent = parent;
+			this.op = op;
+			this.pass = pass;
+		}
+	}
+
+	/** A save or show command, applied to a needed photo. */
+	private static final class Output {
+		final String cmd;
+		final Node node;
+
+		Output(String cmd, Node node) {
+			this.cmd = cmd;
+			this.node = node;
+		}
+	}
+
+	private final Node original;
+	private final Node result;
+	private final List<Output> outputs;
+
+	private Pipeline(Node original, Node result, List<Output> outputs) {
+		this.original = original;
+		this.result = result;
+		this.outputs = outputs;
+	}
+
+	/**
+	 * Compile a sequence of commands into a fused pipeline.
+	 *
+	 * @param cmds the parsed commands.
+	 * @return the compiled pipeline.
+	 * @throws IllegalArgumentException if a command cannot be fused.
+	 */
+	static Pipeline compile(List<Command> cmds) {
+		Node original = new Node(null, null);
+		original.needed = true;
+		List<Node> stack = new ArrayList<>();
+		stack.add(original);
+		List<Output> outputs = new ArrayList<>();
+		for (Command cmd : cmds) {
+			Node top = stack.get(stack.size() - 1);
+			switch (cmd.name) {
+			case "half":
+				stack.add(new Node(top, null));
+				break;
+			case "undo":
+				if (stack.size() > 1) {
+					stack.remove(stack.size() - 1);
+				}
+				break;
+			case "save":
+			case "show":
+				top.needed = true;
+				outputs.add(new Output(cmd.name, top));
+				break;
+			default:
+				if (cmd.op == null && cmd.pass == null) {
+					throw new IllegalArgumentException("cannot fuse command: " + cmd);
+				}
+				stack.add(new Node(top, cmd.op, cmd.pass));
+			}
+		}
+		Node result = stack.get(stack.size() - 1);
+		result.needed = true;
+		plan(result);
+		for (Output out : outputs) {
+			plan(out.node);
+		}
+		return new Pipeline(original, result, outputs);
+	}
+
+	/**
+	 * Work out the fused stages that build a needed photo from its nearest needed ancestor.
+	 */
+	private static void plan(Node node) {
+		if (node.parent == null || node.stages != null) {
+			return;
+		}
+		List<Node> chain = new ArrayList<>();
+		Node from = node;
+		do {
+			chain.add(0, from);
+			from = from.parent;
+		} while (!from.needed);
+		List<Pass> stages = new ArrayList<>();
+		int scaleBy = 1;
+		IntUnaryOperator op = null;
+		for (Node n : chain) {
+			if (n.op == null) {
+				// a resampling command ends the current stage
+				if (scaleBy != 1 || op != null) {
+					stages.add(new Stage(scaleBy, op));
+				}
+				if (n.pass != null) {
+					stages.add(n.pass);
+					scaleBy = 1;
+				} else {
+					scaleBy = 2;
+				}
+				op = null;
+			} else {
+				op = op == null ? n.op : op.andThen(n.op);
+			}
+		}
+		if (scaleBy != 1 || op != null) {
+			stages.add(new Stage(scaleBy, op));
+		}
+		node.from = from;
+		node.stages = stages.toArray(new Pass[0]);
+		plan(from);
+	}
+
+	/**
+	 * @return the passes that turn the original photo into the final photo.
+	 */
+	Pass[] resultRecipe() {
+		List<Pass> recipe = new ArrayList<>();
+		for (Node node = result; node != original; node = node.from) {
+			recipe.addAll(0, Arrays.asList(node.stages));
+		}
+		return recipe.toArray(new Pass[0]);
+	}
+
+	/**
+	 * Run this pipeline on one photo.
+	 *
+	 * @param tool receives the save and show commands.
+	 * @param photo the original photo, which is not modified.
+	 * @param bands runs each stage, possibly in parallel.
+	 * @return the final photo, which may be <code>photo</code> itself.
+	 */
+	Picture run(PhotoTool tool, Picture photo, Bands bands) {
+		Map<Node, Picture> done = new IdentityHashMap<>();
+		done.put(original, photo);
+		for (Output out : outputs) {
+			Picture pic = materialise(out.node, done, bands);
+			if ("save".equals(out.cmd)) {
+				tool.save(pic);
+			} else {
+				tool.show(pic);
+			}
+		}
+		return materialise(result, done, bands);
+	}
+
+	private Picture materialise(Node node, Map<Node, Picture> done, Bands bands) {
+		Picture pic = done.get(node);
+		if (pic == null) {
+			pic = materialise(node.from, done, bands);
+			for (Pass stage : node.stages) {
+				pic = stage.apply(pic, bands);
+			}
+			done.put(node, pic);
+		}
+		return pic;
+	}
+}
@@ -0,0 +1,194 @@
+package nz.ac.waikato.phototool;
+
+import java.util.Arrays;
+
+/**
+ * Resizes photos with a separable filter: a horizontal pass over each input
+ * row, followed by a vertical pass that builds each output row.
+ *
+ * Both passes read and write whole rows in row-major order, and each pass is
+ * split into row bands that may run in parallel.  The intermediate result
+ * keeps floating-point channels, so each output channel is rounded only once.
+ */
+class Resampler {
+
+	/** A resampling filter. */
+	enum Filter {
+		/**
+		 * Area averaging: each output pixel is the average of the input area
+		 * it covers, weighted by how much of each input pixel is covered.
+		 */
+		BOX(0.5),
+
+		/** Lanczos windowed sinc with three lobes.  Sharper, but may ring near edges. */
+		LANCZOS3(3.0);
+
+		/** Half-width of the filter, in output pixels. */
+		final double support;
+
+		Filter(double support) {
+			this.support = support;
+		}
+	}
+
+	/**
+	 * For each output pixel along one axis: the first input pixel that
+	 * contributes to it, and the normalised weights of each contributing pixel.
+	 */
+	private static final class Contributions {
+		final int[] first;
+		final float[][] weights;
+
+		Contributions(int srcSize, int dstSize, Filter filter) {
+			first = new int[dstSize];
+			weights = new float[dstSize][];
+			double scale = (double) dstSize / srcSize;
+			// when shrinking, widen the filter so that every input pixel contributes
+			double filterScale = Math.max(1.0, 1.0 / scale);
+			double support = filter.support * filterScale;
+			for (int i = 0; i < dstSize; i++) {
+				double centre = (i + 0.5) / scale;
+				int left = Math.max(0, (int) Math.floor(centre - support));
+				int right = Math.min(srcSize - 1, (int) Math.ceil(centre + support));
+				double[] w = new double[right - left + 1];
+				double sum = 0.0;
+				for (int j = left; j <= right; j++) {
+					if (filter == Filter.BOX) {
+						// the fraction of input pixel j covered by output pixel i
+						double lo = i / scale;
+						double hi = (i + 1) / scale;
+						w[j - left] = Math.max(0.0, Math.min(j + 1, hi) - Math.max(j, lo));
+					} else {
+						w[j - left] = lanczos3((j + 0.5 - centre) / filterScale);
+					}
+					sum += w[j - left];
+				}
+				// drop zero weights at each end
+				int from = 0;
+				int to = w.length;
+				while (from < to - 1 && w[from] == 0.0) {
+					from++;
+				}
+				while (to - 1 > from && w[to - 1] == 0.0) {
+					to--;
+				}
+				first[i] = left + from;
+				weights[i] = new float[to - from];
+				for (int k = from; k < to; k++) {
+					weights[i][k - from] = (float) (w[k] / sum);
+				}
+			}
+		}
+	}
+
+	private static double lanczos3(double x) {
+		if (x == 0.0) {
+			return 1.0;
+		} else if (x <= -3.0 || x >= 3.0) {
+			return 0.0;
+		}
+		double px = Math.PI * x;
+		return 3.0 * Math.sin(px) * Math.sin(px / 3.0) / (px * px);
+	}
+
+	/**
+	 * @param factor how many times smaller each side of the new photo is.
+	 * @param filter how to combine the input pixels.
+	 * @return a pass that shrinks any photo by the given factor, to at least 1x1.
+	 */
+	static Pipeline.Pass shrink(int factor, Filter filter) {
+		return (src, bands) -> resample(src, Math.max(1, src.width() / factor),
+				Math.max(1, src.height() / factor), filter, bands);
+	}
+
+	/**
+	 * @param factor the size of the new photo relative to the old one, eg. 0.25.
+	 * @param filter how to combine the input pixels.
+	 * @return a pass that scales each side of any photo by factor, to at least 1x1.
+	 */
+	static Pipeline.Pass scaleBy(double factor, Filter filter) {
+		return (src, bands) -> resample(src, Math.max(1, (int) Math.round(src.width() * factor)),
+				Math.max(1, (int) Math.round(src.height() * factor)), filter, bands);
+	}
+
+	/**
+	 * @param width the width of the new photo.
+	 * @param height the height of the new photo.
+	 * @param filter how to combine the input pixels.
+	 * @return a pass that resizes any photo to width x height.
+	 */
+	static Pipeline.Pass resize(int width, int height, Filter filter) {
+		return (src, bands) -> resample(src, width, height, filter, bands);
+	}
+
+	/**
+	 * Resize a photo.
+	 *
+	 * @param src the photo to resize, which is not changed.
+	 * @param width the width of the new photo.  At least 1.
+	 * @param height the height of the new photo.  At least 1.
+	 * @param filter how to combine the input pixels.
+	 * @param bands runs each pass, possibly in parallel.
+	 * @return a new photo of the requested size.
+	 */
+	static Picture resample(Picture src, int width, int height, Filter filter, Bands bands) {
+		if (width < 1 || height < 1) {
+			throw new IllegalArgumentException("cannot scale to " + width + "x" + height);
+		}
+		final int srcWidth = src.width();
+		final int[] srcPixels = src.getPixels();
+		final Contributions columns = new Contributions(srcWidth, width, filter);
+		final Contributions rows = new Contributions(src.height(), height, filter);
+
+		// horizontal pass: each input row becomes a row of 'width' RGB triples
+		final float[] tmp = new float[3 * width * src.height()];
+		bands.forEachBand(width, src.height(), (yFrom, yTo) -> {
+			for (int y = yFrom; y < yTo; y++) {
+				int rowStart = y * srcWidth;
+				int out = 3 * y * width;
+				for (int x = 0; x < width; x++) {
+					float red = 0, green = 0, blue = 0;
+					float[] w = columns.weights[x];
+					int in = rowStart + columns.first[x];
+					for (int k = 0; k < w.length; k++) {
+						int pixel = srcPixels[in + k];
+						red += w[k] * ((pixel >> 16) & 0xFF);
+						green += w[k] * ((pixel >> 8) & 0xFF);
+						blue += w[k] * (pixel & 0xFF);
+					}
+					tmp[out++] = red;
+					tmp[out++] = green;
+					tmp[out++] = blue;
+				}
+			}
+		});
+
+		// vertical pass: each output row is a weighted sum of whole intermediate rows
+		final Picture dst = new Picture(width, height);
+		final int[] dstPixels = dst.getPixels();
+		bands.forEachBand(width, height, (yFrom, yTo) -> {
+			float[] sum = new float[3 * width];
+			for (int y = yFrom; y < yTo; y++) {
+				Arrays.fill(sum, 0.0f);
+				float[] w = rows.weights[y];
+				for (int k = 0; k < w.length; k++) {
+					int in = 3 * (rows.first[y] + k) * width;
+					for (int i = 0; i < sum.length; i++) {
+						sum[i] += w[k] * tmp[in + i];
+					}
+				}
+				int out = y * width;
+				for (int x = 0; x < width; x++) {
+					dstPixels[out + x] = clamp(sum[3 * x]) << 16 | clamp(sum[3 * x + 1]) << 8 | clamp(sum[3 * x + 2]);
+				}
+			}
+		});
+		return dst;
+	}
+
+	/** @return value rounded to the nearest integer in the range 0..255. */
+	private static int clamp(float value) {
+		int result = (int) (value + 0.5f);
+		return result <= 0 ? 0 : (result >= 255 ? 255 : result);
+	}
+}
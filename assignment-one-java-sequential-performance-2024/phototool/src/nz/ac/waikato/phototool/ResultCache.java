@@ -0,0 +1,182 @@
+package nz.ac.waikato.phototool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An on-disk cache of edited photos, so that running the same commands on the
+ * same photo again just copies the previous result.
+ *
+ * Each result is stored as a file named by the SHA-256 hash of the photo's
+ * bytes, the colour engine and the standard form of each command.  Renaming
+ * or moving a photo does not change its key, but any change to its contents
+ * or to the commands does.  The total size of the cache is limited by
+ * deleting the least recently used results, using the file modification time
+ * as the time of last use, so the limit also holds across runs.
+ */
+class ResultCache {
+
+	private final Path dir;
+	private final long budget;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * @param dir the cache directory, which is created if necessary.
+	 * @param budget the maximum total size of the cached files, in bytes.
+	 * @throws IOException if the directory cannot be created.
+	 */
+	ResultCache(String dir, long budget) throws IOException {
+		if (budget < 0) {
+			throw new IllegalArgumentException("cache size must be at least zero, not " + budget);
+		}
+		this.dir = Files.createDirectories(Paths.get(dir));
+		this.budget = budget;
+	}
+
+	/**
+	 * @param photoName the photo file to be edited.
+	 * @param newName the file that the edited photo is saved as.  Its extension is part of the key.
+	 * @param engine the name of the colour engine, since they may give slightly different results.
+	 * @param cmds the commands applied to the photo.
+	 * @return the cache key of the result.
+	 * @throws IOException if the photo cannot be read.
+	 */
+	static String key(String photoName, String newName, String engine, List<Command> cmds) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException("SHA-256 is not available", ex);
+		}
+		byte[] buffer = new byte[1 << 16];
+		try (InputStream in = Files.newInputStream(Paths.get(photoName))) {
+			for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+				digest.update(buffer, 0, n);
+			}
+		}
+		StringBuilder recipe = new StringBuilder();
+		recipe.append('\n').append(extension(newName)).append('\n').append(engine);
+		for (Command cmd : cmds) {
+			recipe.append('\n').append(cmd.key);
+		}
+		digest.update(recipe.toString().getBytes(StandardCharsets.UTF_8));
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest()) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Copy a cached result, if there is one.
+	 *
+	 * @param key the key of the result.
+	 * @param newName where to copy the result to.
+	 * @return true if the result was cached and has been copied.
+	 */
+	boolean fetch(String key, String newName) {
+		Path cached = dir.resolve(key + "." + extension(newName));
+		try {
+			Files.copy(cached, Paths.get(newName), StandardCopyOption.REPLACE_EXISTING);
+			Files.setLastModifiedTime(cached, FileTime.fromMillis(System.currentTimeMillis()));
+			hits++;
+			return true;
+		} catch (IOException ex) {
+			misses++;
+			return false;
+		}
+	}
+
+	/**
+	 * Add a result to the cache, then evict old results until the cache fits its budget.
+	 * The new result is always kept, even if it is larger than the budget.
+	 *
+	 * @param key the key of the result.
+	 * @param newName the edited photo file, which is copied into the cache.
+	 * @throws IOException if the result cannot be copied.
+	 */
+	void store(String key, String newName) throws IOException {
+		Path cached = dir.resolve(key + "." + extension(newName));
+		// copy to a temporary name first, so that other runs never see half a file
+		Path tmp = Files.createTempFile(dir, key, ".tmp");
+		try {
+			Files.copy(Paths.get(newName), tmp, StandardCopyOption.REPLACE_EXISTING);
+			Files.move(tmp, cached, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+		evict(cached);
+	}
+
+	/** Delete the least recently used results until the total size is within the budget. */
+	private void evict(Path keep) throws IOException {
+		List<Path> files = new ArrayList<>();
+		long total = 0;
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+			for (Path file : entries) {
+				if (Files.isRegularFile(file) && !file.getFileName().toString().endsWith(".tmp")) {
+					files.add(file);
+					total += Files.size(file);
+				}
+			}
+		}
+		if (total <= budget) {
+			return;
+		}
+		List<FileTime> times = new ArrayList<>();
+		for (Path file : files) {
+			times.add(Files.getLastModifiedTime(file));
+		}
+		List<Integer> order = new ArrayList<>();
+		for (int i = 0; i < files.size(); i++) {
+			order.add(i);
+		}
+		order.sort((a, b) -> times.get(a).compareTo(times.get(b)));
+		for (int i : order) {
+			if (total <= budget) {
+				break;
+			}
+			Path file = files.get(i);
+			if (!file.equals(keep)) {
+				long size = Files.size(file);
+				if (Files.deleteIfExists(file)) {
+					total -= size;
+					evictions++;
+				}
+			}
+		}
+	}
+
+	private static String extension(String filename) {
+		return filename.substring(filename.lastIndexOf('.') + 1);
+	}
+
+	/** @return the number of results that were copied from the cache. */
+	long hits() {
+		return hits;
+	}
+
+	/** @return the number of results that were not in the cache. */
+	long misses() {
+		return misses;
+	}
+
+	/** @return a one-line summary of the cache statistics. */
+	String stats() {
+		return "result cache: " + hits + " hits, " + misses + " misses, " + evictions + " evictions.";
+	}
+}
@@ -0,0 +1,305 @@
+package nz.ac.waikato.phototool;
+
+import java.awt.Image;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Vector;
+import java.util.function.IntUnaryOperator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Edits an image file that is too large to load, one horizontal band of rows at a time.
+ *
+ * This is a read-only image whose tiles are full-width bands of rows.  Each
+ * band is decoded only when the image writer asks for it, using
+ * <code>ImageReadParam.setSourceRegion</code>, and the point-wise operator is
+ * applied to it then.  Only the most recent band is kept, so an encoder that
+ * asks for the rows in order (such as PNG) needs memory for just one band.
+ *
+ * The JDK's JPEG encoder asks for the whole image as one raster, so JPEG
+ * output still needs three bytes per pixel, which is less than half of what
+ * loading the original and one edited Picture needs.
+ *
+ * Most decoders cannot seek to a row, so each band re-decodes the rows above
+ * it: a photo of B bands decodes B(B+1)/2 bands of rows in all, about (B+1)/2
+ * times as much as decoding it once.  So bands should be as large as memory
+ * allows: {@link #AUTO} picks bands of about {@link #AUTO_BAND_BYTES} bytes.
+ */
+class StreamedImage implements RenderedImage {
+
+	/** The band rows that ask for bands of about AUTO_BAND_BYTES each. */
+	static final int AUTO = 0;
+
+	/** The size of the decoded pixels of each band, when the band rows are AUTO. */
+	static final long AUTO_BAND_BYTES = 64L * 1024 * 1024;
+
+	private final ImageReader reader;
+	private final ImageReadParam param;
+	private final IntUnaryOperator op;
+	private final Bands bands;
+	private final int width;
+	private final int height;
+	private final int bandRows;
+	private final SampleModel sampleModel;
+	private final ColorModel colorModel;
+
+	/** The index of the most recently decoded band, and its pixels. */
+	private int cachedBand = -1;
+	private Raster cachedRaster;
+
+	private StreamedImage(ImageReader reader, IntUnaryOperator op, int bandRows, Bands bands) throws IOException {
+		this.reader = reader;
+		this.op = op;
+		this.bands = bands;
+		this.width = reader.getWidth(0);
+		this.height = reader.getHeight(0);
+		this.bandRows = Math.min(bandRows == AUTO ? autoRows(width) : bandRows, height);
+		param = reader.getDefaultReadParam();
+		Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+		while (types.hasNext()) {
+			ImageTypeSpecifier type = types.next();
+			if (type.getBufferedImageType() == BufferedImage.TYPE_INT_RGB) {
+				param.setDestinationType(type);
+				break;
+			}
+		}
+		sampleModel = new PixelInterleavedSampleModel(DataBuffer.TYPE_BYTE, width, this.bandRows, 3, 3 * width,
+				new int[] {0, 1, 2});
+		colorModel = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB), false, false,
+				Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+	}
+
+	/**
+	 * Read an image file one band at a time, apply op to every pixel, and write the result.
+	 *
+	 * @param filename the image file to read.
+	 * @param newName the image file to write.  Its extension gives the format.
+	 * @param op the point-wise operator to apply to each pixel.
+	 * @param bandRows the number of rows decoded at once.  At least 1, or AUTO.
+	 * @param bands runs op on each band, possibly in parallel.
+	 * @throws IOException if the new image cannot be written.
+	 */
+	static void edit(String filename, String newName, IntUnaryOperator op, int bandRows, Bands bands)
+			throws IOException {
+		if (bandRows < 1 && bandRows != AUTO) {
+			throw new IllegalArgumentException("band rows must be at least 1, not " + bandRows);
+		}
+		try (ImageInputStream input = ImageIO.createImageInputStream(new File(filename))) {
+			if (input == null) {
+				throw new RuntimeException("Could not open file: " + filename + ": cannot read input file");
+			}
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+			if (!readers.hasNext()) {
+				throw new RuntimeException("Invalid image file: " + filename);
+			}
+			ImageReader reader = readers.next();
+			try {
+				// not seek-forward-only, because every band is read from the start of the image
+				reader.setInput(input, false, true);
+				StreamedImage image = new StreamedImage(reader, op, bandRows, bands);
+				final String extn = newName.substring(newName.lastIndexOf('.') + 1);
+				ImageIO.write(image, extn, new File(newName));
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+
+	/** @return the number of rows of the given width whose pixels fit in AUTO_BAND_BYTES. */
+	static int autoRows(int width) {
+		return (int) Math.max(1, Math.min(Integer.MAX_VALUE, AUTO_BAND_BYTES / (4L * width)));
+	}
+
+	/**
+	 * Compose a command sequence into a single point-wise operator.
+	 *
+	 * @param cmds point-wise colour commands, undo and save.
+	 * @return the operator that creates the last photo saved, or null if nothing is saved.
+	 * @throws IllegalArgumentException if a command cannot be applied one band at a time.
+	 */
+	static IntUnaryOperator compose(List<Command> cmds) {
+		List<IntUnaryOperator> stack = new ArrayList<>();
+		stack.add(IntUnaryOperator.identity());
+		IntUnaryOperator saved = null;
+		for (Command cmd : cmds) {
+			IntUnaryOperator top = stack.get(stack.size() - 1);
+			if (cmd.op != null) {
+				stack.add(top.andThen(cmd.op));
+			} else if ("undo".equals(cmd.name)) {
+				if (stack.size() > 1) {
+					stack.remove(stack.size() - 1);
+				}
+			} else if ("save".equals(cmd.name)) {
+				saved = top;
+			} else {
+				throw new IllegalArgumentException("cannot stream command: " + cmd);
+			}
+		}
+		return saved;
+	}
+
+	/** @return the edited pixels of one band, decoding it if it is not the cached band. */
+	private Raster band(int index) {
+		if (index != cachedBand) {
+			int y0 = index * bandRows;
+			int rows = Math.min(bandRows, height - y0);
+			param.setSourceRegion(new Rectangle(0, y0, width, rows));
+			final int[] pixels;
+			try {
+				pixels = new Picture(reader.read(0, param)).getPixels();
+			} catch (IOException ex) {
+				throw new RuntimeException("Could not read rows " + y0 + ".." + (y0 + rows) + ": " + ex.getMessage());
+			}
+			final byte[] rgb = new byte[3 * width * rows];
+			bands.forEachBand(width, rows, (yFrom, yTo) -> {
+				for (int i = yFrom * width; i < yTo * width; i++) {
+					int pixel = op.applyAsInt(pixels[i]);
+					rgb[3 * i] = (byte) (pixel >> 16);
+					rgb[3 * i + 1] = (byte) (pixel >> 8);
+					rgb[3 * i + 2] = (byte) pixel;
+				}
+			});
+			cachedRaster = Raster.createRaster(sampleModel.createCompatibleSampleModel(width, rows),
+					new DataBufferByte(rgb, rgb.length), new Point(0, y0));
+			cachedBand = index;
+		}
+		return cachedRaster;
+	}
+
+	@Override
+	public Raster getTile(int tileX, int tileY) {
+		return band(tileY);
+	}
+
+	@Override
+	public Raster getData() {
+		return getData(new Rectangle(0, 0, width, height));
+	}
+
+	@Override
+	public Raster getData(Rectangle rect) {
+		WritableRaster raster = Raster.createWritableRaster(
+				sampleModel.createCompatibleSampleModel(rect.width, rect.height), rect.getLocation());
+		return copyData(raster);
+	}
+
+	@Override
+	public WritableRaster copyData(WritableRaster raster) {
+		if (raster == null) {
+			raster = Raster.createWritableRaster(sampleModel.createCompatibleSampleModel(width, height), null);
+		}
+		int first = Math.max(0, raster.getMinY()) / bandRows;
+		int last = Math.min(height - 1, raster.getMinY() + raster.getHeight() - 1) / bandRows;
+		for (int index = first; index <= last; index++) {
+			raster.setRect(band(index));
+		}
+		return raster;
+	}
+
+	@Override
+	public Vector<RenderedImage> getSources() {
+		return null;
+	}
+
+	@Override
+	public Object getProperty(String name) {
+		return Image.UndefinedProperty;
+	}
+
+	@Override
+	public String[] getPropertyNames() {
+		return null;
+	}
+
+	@Override
+	public ColorModel getColorModel() {
+		return colorModel;
+	}
+
+	@Override
+	public SampleModel getSampleModel() {
+		return sampleModel;
+	}
+
+	@Override
+	public int getWidth() {
+		return width;
+	}
+
+	@Override
+	public int getHeight() {
+		return height;
+	}
+
+	@Override
+	public int getMinX() {
+		return 0;
+	}
+
+	@Override
+	public int getMinY() {
+		return 0;
+	}
+
+	@Override
+	public int getNumXTiles() {
+		return 1;
+	}
+
+	@Override
+	public int getNumYTiles() {
+		return (height + bandRows - 1) / bandRows;
+	}
+
+	@Override
+	public int getMinTileX() {
+		return 0;
+	}
+
+	@Override
+	public int getMinTileY() {
+		return 0;
+	}
+
+	@Override
+	public int getTileWidth() {
+		return width;
+	}
+
+	@Override
+	public int getTileHeight() {
+		return bandRows;
+	}
+
+	@Override
+	public int getTileGridXOffset() {
+		return 0;
+	}
+
+	@Override
+	public int getTileGridYOffset() {
+		return 0;
+	}
+}
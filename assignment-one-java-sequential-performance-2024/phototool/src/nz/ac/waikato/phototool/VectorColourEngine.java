@@ -0,0 +1,106 @@
+package nz.ac.waikato.phototool;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Colour operations that process a whole SIMD register of pixels at once,
+ * using the (incubating) Vector API.
+ *
+ * Sepia uses integer fixed-point coefficients instead of doubles.  Grayscale
+ * divides by 3 with a multiply and shift, which gives exactly the same results
+ * as the integer division for every possible sum of three channels.
+ *
+ * Only create this class through <code>ColourEngine.vector()</code>, which
+ * falls back to the scalar engine when the Vector API is not available.
+ */
+class VectorColourEngine implements ColourEngine {
+
+	private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+	/** The number of fraction bits of the fixed-point sepia coefficients. */
+	private static final int FIXED_BITS = 12;
+
+	private static final int RR = fixed(.393), RG = fixed(.769), RB = fixed(.189);
+	private static final int GR = fixed(.349), GG = fixed(.686), GB = fixed(.168);
+	private static final int BR = fixed(.272), BG = fixed(.534), BB = fixed(.131);
+
+	/** sum * THIRD >> THIRD_BITS == sum / 3, for all sums 0..765. */
+	private static final int THIRD = 21846;
+	private static final int THIRD_BITS = 16;
+
+	private static int fixed(double coefficient) {
+		return (int) Math.round(coefficient * (1 << FIXED_BITS));
+	}
+
+	@Override
+	public int grayscalePixel(int pixel) {
+		int sum = ((pixel >> 16) & 0xFF) + ((pixel >> 8) & 0xFF) + (pixel & 0xFF);
+		int average = sum * THIRD >> THIRD_BITS;
+		return average << 16 | average << 8 | average;
+	}
+
+	@Override
+	public int sepiaPixel(int pixel) {
+		int red = (pixel >> 16) & 0xFF;
+		int green = (pixel >> 8) & 0xFF;
+		int blue = pixel & 0xFF;
+		int newRed = Math.min(255, (red * RR + green * RG + blue * RB) >> FIXED_BITS);
+		int newGreen = Math.min(255, (red * GR + green * GG + blue * GB) >> FIXED_BITS);
+		int newBlue = Math.min(255, (red * BR + green * BG + blue * BB) >> FIXED_BITS);
+		return newRed << 16 | newGreen << 8 | newBlue;
+	}
+
+	@Override
+	public void grayscale(int[] src, int[] dst, int from, int to) {
+		int i = from;
+		int upper = from + SPECIES.loopBound(to - from);
+		for (; i < upper; i += SPECIES.length()) {
+			IntVector pixels = IntVector.fromArray(SPECIES, src, i);
+			IntVector average = channel(pixels, 16).add(channel(pixels, 8)).add(channel(pixels, 0))
+					.mul(THIRD).lanewise(VectorOperators.LSHR, THIRD_BITS);
+			average.lanewise(VectorOperators.LSHL, 16)
+					.or(average.lanewise(VectorOperators.LSHL, 8))
+					.or(average)
+					.intoArray(dst, i);
+		}
+		for (; i < to; i++) {
+			dst[i] = grayscalePixel(src[i]);
+		}
+	}
+
+	@Override
+	public void sepia(int[] src, int[] dst, int from, int to) {
+		int i = from;
+		int upper = from + SPECIES.loopBound(to - from);
+		for (; i < upper; i += SPECIES.length()) {
+			IntVector pixels = IntVector.fromArray(SPECIES, src, i);
+			IntVector red = channel(pixels, 16);
+			IntVector green = channel(pixels, 8);
+			IntVector blue = channel(pixels, 0);
+			IntVector newRed = mix(red, green, blue, RR, RG, RB);
+			IntVector newGreen = mix(red, green, blue, GR, GG, GB);
+			IntVector newBlue = mix(red, green, blue, BR, BG, BB);
+			newRed.lanewise(VectorOperators.LSHL, 16)
+					.or(newGreen.lanewise(VectorOperators.LSHL, 8))
+					.or(newBlue)
+					.intoArray(dst, i);
+		}
+		for (; i < to; i++) {
+			dst[i] = sepiaPixel(src[i]);
+		}
+	}
+
+	/** @return the 8-bit colour channel starting at the given bit, of each pixel. */
+	private static IntVector channel(IntVector pixels, int shift) {
+		return pixels.lanewise(VectorOperators.LSHR, shift).and(0xFF);
+	}
+
+	/** @return one output channel: the fixed-point weighted sum of the inputs, clamped to 255. */
+	private static IntVector mix(IntVector red, IntVector green, IntVector blue, int r, int g, int b) {
+		return red.mul(r).add(green.mul(g)).add(blue.mul(b))
+				.lanewise(VectorOperators.ASHR, FIXED_BITS)
+				.min(255);
+	}
+}
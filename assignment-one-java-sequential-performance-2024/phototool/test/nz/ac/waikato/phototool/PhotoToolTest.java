@@ -1,6 +1,24 @@
 package nz.ac.waikato.phototool;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.Stream;
 
 import org.junit.Test;
 
@@ -33,4 +51,373 @@ public class PhotoToolTest {
 		assertEquals(1, tool.getStackSize());
 	}
 
+	@Test
+	public void testFusedPipeline() {
+		PhotoTool expected = new PhotoTool("Eiffel.jpg");
+		expected.grayscale();
+		expected.undo();
+		expected.sepia();
+		expected.half();
+		expected.grayscale();
+		expected.half();
+		PhotoTool actual = new PhotoTool("Eiffel.jpg");
+		actual.run(Pipeline.compile(Command.parseAll(Arrays.asList("grayscale", "undo", "sepia", "half", "grayscale", "half"), ColourEngine.SCALAR)));
+		// only the original and the final photo are kept
+		assertEquals(2, actual.getStackSize());
+		assertSamePixels(expected.getCurrentPhoto(), actual.getCurrentPhoto());
+	}
+
+	@Test
+	public void testParallelBands() {
+		PhotoTool expected = new PhotoTool("Eiffel.jpg");
+		PhotoTool actual = new PhotoTool("Eiffel.jpg");
+		actual.setBands(new Bands(4));
+		expected.grayscale();
+		actual.grayscale();
+		assertSamePixels(expected.getCurrentPhoto(), actual.getCurrentPhoto());
+		expected.undo();
+		actual.undo();
+		expected.sepia();
+		actual.sepia();
+		assertSamePixels(expected.getCurrentPhoto(), actual.getCurrentPhoto());
+		expected.half();
+		actual.half();
+		assertSamePixels(expected.getCurrentPhoto(), actual.getCurrentPhoto());
+	}
+
+	@Test
+	public void testHistoryBudget() {
+		PhotoTool expected = new PhotoTool("Eiffel.jpg");
+		PhotoTool actual = new PhotoTool("Eiffel.jpg");
+		// room for just one full-size edited photo
+		actual.setHistoryBudget(4L * 1944 * 2592);
+		for (PhotoTool tool : new PhotoTool[] {expected, actual}) {
+			tool.sepia();
+			tool.grayscale();
+			tool.half();
+			tool.undo();
+		}
+		assertEquals(3, actual.getStackSize());
+		assertSamePixels(expected.getCurrentPhoto(), actual.getCurrentPhoto());
+		actual.undo();
+		expected.undo();
+		// the sepia photo was evicted, so it is re-created from the original
+		long misses = actual.getHistory().misses();
+		long hits = actual.getHistory().hits();
+		assertSamePixels(expected.getCurrentPhoto(), actual.getCurrentPhoto());
+		assertEquals(misses + 1, actual.getHistory().misses());
+		assertSamePixels(expected.getCurrentPhoto(), actual.getCurrentPhoto());
+		assertEquals(hits + 1, actual.getHistory().hits());
+	}
+
+	@Test
+	public void testVectorColours() {
+		ColourEngine vector = ColourEngine.vector();
+		assumeTrue(vector != ColourEngine.SCALAR);
+		PhotoTool expected = new PhotoTool("Eiffel.jpg");
+		PhotoTool actual = new PhotoTool("Eiffel.jpg");
+		actual.setColourEngine(vector);
+		expected.grayscale();
+		actual.grayscale();
+		assertSamePixels(expected.getCurrentPhoto(), actual.getCurrentPhoto());
+		expected.undo();
+		actual.undo();
+		expected.sepia();
+		actual.sepia();
+		// fixed-point sepia is within one of the double-precision version
+		Picture exp = expected.getCurrentPhoto();
+		Picture act = actual.getCurrentPhoto();
+		for (int i = 0; i < exp.width() * exp.height(); i++) {
+			for (int shift = 0; shift <= 16; shift += 8) {
+				int diff = ((exp.get(i) >> shift) & 0xFF) - ((act.get(i) >> shift) & 0xFF);
+				assertTrue("pixel " + i + " differs by " + diff, Math.abs(diff) <= 1);
+			}
+		}
+	}
+
+	@Test
+	public void testImageSharesPixels() {
+		Picture pic = new Picture(3, 2);
+		pic.set(2, 1, 0x123456);
+		BufferedImage image = pic.getImage();
+		assertEquals(BufferedImage.TYPE_INT_RGB, image.getType());
+		assertEquals(0x123456, image.getRGB(2, 1) & 0xFFFFFF);
+		// no copy is made in either direction
+		pic.set(0, 0, 0xABCDEF);
+		assertEquals(0xABCDEF, image.getRGB(0, 0) & 0xFFFFFF);
+		Picture wrapped = new Picture(image);
+		image.setRGB(1, 0, 0x00FF00);
+		assertEquals(0x00FF00, wrapped.get(1, 0));
+	}
+
+	@Test
+	public void testResampling() {
+		// each 2x2 block has red values 0, 10, 20, 31, so the exact average is 15.25
+		Picture pic = new Picture(4, 2);
+		for (int x = 0; x < 4; x += 2) {
+			pic.set(x, 0, 0x000000);
+			pic.set(x + 1, 0, 0x0A0000);
+			pic.set(x, 1, 0x140000);
+			pic.set(x + 1, 1, 0x1F00FF);
+		}
+		Picture small = Resampler.resample(pic, 2, 1, Resampler.Filter.BOX, Bands.SEQUENTIAL);
+		assertEquals(0x0F0040, small.get(0, 0));
+		assertEquals(0x0F0040, small.get(1, 0));
+
+		PhotoTool expected = new PhotoTool("Eiffel.jpg");
+		PhotoTool actual = new PhotoTool("Eiffel.jpg");
+		actual.setBands(new Bands(4));
+		expected.quarter();
+		actual.quarter();
+		assertEquals(486, actual.getWidth());
+		assertEquals(648, actual.getHeight());
+		assertSamePixels(expected.getCurrentPhoto(), actual.getCurrentPhoto());
+		expected.lanczos(100, 120);
+		actual.lanczos(100, 120);
+		assertSamePixels(expected.getCurrentPhoto(), actual.getCurrentPhoto());
+		// quarter can be fused with the colour commands
+		expected.undo();
+		expected.sepia();
+		actual.run(Pipeline.compile(Command.parseAll(Arrays.asList("quarter", "sepia"), ColourEngine.SCALAR)));
+		assertSamePixels(expected.getCurrentPhoto(), actual.getCurrentPhoto());
+	}
+
+	@Test
+	public void testCommandGrammar() {
+		PhotoTool expected = new PhotoTool("Eiffel.jpg");
+		PhotoTool actual = new PhotoTool("Eiffel.jpg");
+		expected.scale(486, 648);
+		expected.sepia();
+		for (Command cmd : Command.parseAll(Arrays.asList("scale:0.25", "sepia:strength=1"), ColourEngine.SCALAR)) {
+			cmd.apply(actual);
+		}
+		assertSamePixels(expected.getCurrentPhoto(), actual.getCurrentPhoto());
+		// a partial strength is halfway between the photo and its sepia version
+		actual.undo();
+		int before = actual.getCurrentPhoto().get(0);
+		Command.parse("sepia:0.5", ColourEngine.SCALAR).apply(actual);
+		assertEquals(Command.blend(before, expected.getCurrentPhoto().get(0), 0.5), actual.getCurrentPhoto().get(0));
+		assertEquals(0x050A80, Command.blend(0x000000, 0x0A14FF, 0.5));
+		// fused and direct runs give the same photo
+		PhotoTool fused = new PhotoTool("Eiffel.jpg");
+		fused.run(Pipeline.compile(Command.parseAll(Arrays.asList("scale:486,648", "sepia:0.5"), ColourEngine.SCALAR)));
+		assertSamePixels(actual.getCurrentPhoto(), fused.getCurrentPhoto());
+		assertEquals(null, Command.parse("sharpen", ColourEngine.SCALAR));
+		for (String bad : new String[] {"half:2", "scale", "scale:0", "sepia:strength=2", "sepia:strength=NaN",
+				"scale:0.5,filter=cubic", "scale:2.5,3", "scale:1e12,5", "scale:NaN,5", "scale:100000,100000"}) {
+			try {
+				Command.parse(bad, ColourEngine.SCALAR);
+				fail("expected an error for " + bad);
+			} catch (IllegalArgumentException ex) {
+				assertTrue(ex.getMessage().startsWith(bad));
+			}
+		}
+	}
+
+	@Test
+	public void testStreamedImage() throws IOException {
+		PhotoTool expected = new PhotoTool("Eiffel.jpg");
+		expected.half();
+		File input = File.createTempFile("streamed", ".png");
+		File output = File.createTempFile("streamed", ".png");
+		try {
+			expected.getCurrentPhoto().save(input.getPath());
+			expected.sepia();
+			expected.grayscale();
+			List<Command> cmds = Command.parseAll(Arrays.asList("sepia", "grayscale", "save", "undo"), ColourEngine.SCALAR);
+			// 100 does not divide the height, so the last band is short
+			StreamedImage.edit(input.getPath(), output.getPath(), StreamedImage.compose(cmds), 100, new Bands(2));
+			assertSamePixels(expected.getCurrentPhoto(), new Picture(output.getPath()));
+			// the whole photo fits in one automatic band
+			StreamedImage.edit(input.getPath(), output.getPath(), StreamedImage.compose(cmds), StreamedImage.AUTO, new Bands(1));
+			assertSamePixels(expected.getCurrentPhoto(), new Picture(output.getPath()));
+		} finally {
+			input.delete();
+			output.delete();
+		}
+	}
+
+	@Test
+	public void testColourMatrix() {
+		IntUnaryOperator grayscale = ColourMatrix.GRAYSCALE.compile();
+		IntUnaryOperator sepia = ColourMatrix.SEPIA.compile();
+		for (int pixel = 0; pixel < (1 << 24); pixel += 7) {
+			assertEquals(PhotoTool.grayscalePixel(pixel), grayscale.applyAsInt(pixel));
+			int expected = PhotoTool.sepiaPixel(pixel);
+			int actual = sepia.applyAsInt(pixel);
+			for (int shift = 0; shift <= 16; shift += 8) {
+				int diff = ((expected >> shift) & 0xFF) - ((actual >> shift) & 0xFF);
+				assertTrue("pixel " + pixel + " differs by " + diff, Math.abs(diff) <= 1);
+			}
+		}
+		// blue becomes red, green is negated and red is doubled into blue, with clamping
+		Command swap = Command.parse("matrix:0,0,1,0,-1,0,2,0,0", ColourEngine.SCALAR);
+		assertEquals(0x330090, swap.op.applyAsInt(0x48E133));
+		assertEquals(0x3300FF, swap.op.applyAsInt(0xFF0033));
+		// weights this large do not fit in the table fields, so they are applied in double precision
+		ColourMatrix large = new ColourMatrix(new double[][] {{5000, -5000, 0}, {0, 1, 0}, {0, 0, 1}});
+		try {
+			large.compile();
+			fail("the weights of this matrix are too large to compile");
+		} catch (IllegalArgumentException ex) {
+			// expected
+		}
+		Command command = Command.parse("matrix:5000,-5000,0,0,1,0,0,0,1", ColourEngine.SCALAR);
+		assertEquals(0x000000, command.op.applyAsInt(0x000000));
+		for (int pixel = 0; pixel < (1 << 24); pixel += 997) {
+			assertEquals(large.apply(pixel), command.op.applyAsInt(pixel));
+		}
+	}
+
+	@Test
+	public void testResultCache() throws IOException {
+		Path dir = Files.createTempDirectory("cache");
+		Path photo = dir.resolve("photo.png");
+		Path edited = dir.resolve("photo_edited.png");
+		try {
+			new Picture(4, 4).save(photo.toString());
+			List<Command> sepia = Command.parseAll(Arrays.asList("sepia", "save"), ColourEngine.SCALAR);
+			List<Command> blend = Command.parseAll(Arrays.asList("sepia:0.5", "save"), ColourEngine.SCALAR);
+			String key = ResultCache.key(photo.toString(), edited.toString(), "scalar", sepia);
+			// the key depends on the commands and the engine
+			assertTrue(!key.equals(ResultCache.key(photo.toString(), edited.toString(), "scalar", blend)));
+			assertTrue(!key.equals(ResultCache.key(photo.toString(), edited.toString(), "lut", sepia)));
+			assertEquals(key, ResultCache.key(photo.toString(), edited.toString(), "scalar",
+					Command.parseAll(Arrays.asList("sepia:strength=1", "save"), ColourEngine.SCALAR)));
+
+			// room for just one result
+			long size = Files.size(photo);
+			ResultCache cache = new ResultCache(dir.resolve("results").toString(), size + size / 2);
+			assertTrue(!cache.fetch(key, edited.toString()));
+			Files.copy(photo, edited);
+			cache.store(key, edited.toString());
+			Files.delete(edited);
+			assertTrue(cache.fetch(key, edited.toString()));
+			assertEquals(size, Files.size(edited));
+			cache.store("other", edited.toString());
+			assertTrue(!cache.fetch(key, edited.toString()));
+			assertEquals(1, cache.hits());
+			assertEquals(2, cache.misses());
+
+			// an edited photo left by an earlier run is kept, but only cached once this run writes it
+			Map<String, String> keys = new HashMap<>();
+			assertEquals(Arrays.asList(photo.toString()),
+					PhotoTool.fetchCached(Arrays.asList(photo.toString()), sepia, "scalar", cache, keys));
+			assertTrue(Files.exists(edited));
+			Map<String, Boolean> saves = new HashMap<>();
+			PhotoTool.storeCached(photo.toString(), keys, saves, cache);
+			PhotoTool.logSave(saves, edited.toString(), true);
+			PhotoTool.logSave(saves, edited.toString(), false);
+			PhotoTool.storeCached(photo.toString(), keys, saves, cache);
+			assertTrue(!cache.fetch(key, edited.toString()));
+			saves.clear();
+			PhotoTool.logSave(saves, edited.toString(), true);
+			PhotoTool.storeCached(photo.toString(), keys, saves, cache);
+			assertTrue(cache.fetch(key, edited.toString()));
+		} finally {
+			try (Stream<Path> files = Files.walk(dir)) {
+				files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+			}
+		}
+	}
+
+	@Test
+	public void testAsyncSaver() throws IOException, InterruptedException {
+		File photo = File.createTempFile("async", ".png");
+		File edited = new File(photo.getPath().replace(".png", "_edited.png"));
+		try {
+			Picture pic = new Picture(8, 8);
+			pic.set(3, 4, 0x123456);
+			pic.save(photo.getPath());
+			AsyncSaver saver = new AsyncSaver(3, 3);
+			PhotoTool tool = new PhotoTool(photo.getPath());
+			tool.setSaver(saver);
+			// later saves of the same file win, even with several encoders
+			tool.sepia();
+			tool.save();
+			tool.undo();
+			tool.grayscale();
+			tool.save();
+			tool.undo();
+			tool.save();
+			saver.finish();
+			assertSamePixels(pic, new Picture(edited.getPath()));
+		} finally {
+			photo.delete();
+			edited.delete();
+		}
+	}
+
+	@Test
+	public void testBatch() throws IOException, InterruptedException {
+		Path dir = Files.createTempDirectory("batch");
+		try {
+			List<String> names = new ArrayList<>();
+			for (int i = 0; i < 4; i++) {
+				Picture pic = new Picture(16, 8 + i);
+				for (int p = 0; p < 16 * (8 + i); p++) {
+					pic.set(p % 16, p / 16, p * 0x010307 + i);
+				}
+				names.add(dir.resolve("photo" + i + ".png").toString());
+				pic.save(names.get(i));
+			}
+			// a photo that fails to decode is skipped, and the rest are still processed
+			Files.write(dir.resolve("broken.png"), new byte[] {1, 2, 3});
+			names.add(2, dir.resolve("broken.png").toString());
+			List<Command> cmds = Command.parseAll(Arrays.asList("sepia", "save", "undo", "half", "save"), ColourEngine.SCALAR);
+			List<Picture> expected = new ArrayList<>();
+			for (String name : names) {
+				if (!name.endsWith("broken.png")) {
+					PhotoTool.process(new PhotoTool(name), cmds, null, null);
+					expected.add(new Picture(name.replace(".png", "_edited.png")));
+				}
+			}
+			for (int inFlight = 1; inFlight <= 2; inFlight++) {
+				for (String name : names) {
+					Files.deleteIfExists(Paths.get(name.replace(".png", "_edited.png")));
+				}
+				assertEquals(4, new Batch(inFlight).run(names, tool -> PhotoTool.process(tool, cmds, null, null)));
+				int i = 0;
+				for (String name : names) {
+					if (!name.endsWith("broken.png")) {
+						assertSamePixels(expected.get(i++), new Picture(name.replace(".png", "_edited.png")));
+					}
+				}
+			}
+		} finally {
+			try (Stream<Path> files = Files.walk(dir)) {
+				files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+			}
+		}
+	}
+
+	@Test
+	public void testHistogram() {
+		Histogram histogram = new Histogram();
+		for (int i = 1; i <= 1000; i++) {
+			histogram.record(i * 1000L);
+		}
+		assertEquals(1000, histogram.count());
+		assertEquals(1000000, histogram.max());
+		assertEquals(500500.0, histogram.mean(), 1e-6);
+		// percentiles are within the 3% bucket precision
+		assertEquals(500000.0, histogram.percentile(50), 500000 * 0.03);
+		assertEquals(990000.0, histogram.percentile(99), 990000 * 0.03);
+		assertEquals(1000000, histogram.percentile(100));
+		// small values are exact
+		Histogram small = new Histogram();
+		small.record(7);
+		small.record(3);
+		assertEquals(3, small.percentile(50));
+		assertEquals(7, small.percentile(99));
+	}
+
+	static void assertSamePixels(Picture expected, Picture actual) {
+		assertEquals(expected.width(), actual.width());
+		assertEquals(expected.height(), actual.height());
+		for (int i = 0; i < expected.width() * expected.height(); i++) {
+			assertEquals("pixel " + i, expected.get(i), actual.get(i));
+		}
+	}
+
 }
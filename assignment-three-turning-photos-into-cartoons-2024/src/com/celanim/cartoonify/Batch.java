@@ -0,0 +1,95 @@
+package com.celanim.cartoonify;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Cartoonifies many photos at once, one photo per worker thread.
+ * <p>
+ * Each worker thread has its own Cartoonify object, with the same settings,
+ * so each has its own stack of images and the photos can be different sizes.
+ * Each worker loads, processes and saves a whole photo, so the loading and
+ * saving of some photos overlaps with the processing of others.  At most one
+ * photo per worker is in memory at once.
+ */
+public class Batch {
+
+    /**
+     * The settings that each worker copies.
+     */
+    private final Cartoonify settings;
+
+    /**
+     * The number of photos processed at once.
+     */
+    private final int numWorkers;
+
+    /**
+     * @param settings   the options to process each photo with.
+     * @param numWorkers the number of photos to process at once.  At least 1.
+     */
+    public Batch(Cartoonify settings, int numWorkers) {
+        if (numWorkers < 1) {
+            throw new IllegalArgumentException("number of workers must be at least 1, not " + numWorkers);
+        }
+        this.settings = settings;
+        this.numWorkers = numWorkers;
+    }
+
+    /**
+     * Process all the photos, then print the average processing time and the overall throughput.
+     * Photos that cannot be processed are reported and skipped.
+     *
+     * @param names the photos to process.
+     * @return the number of photos that were processed.
+     * @throws InterruptedException if the calling thread is interrupted.
+     */
+    public int run(List<String> names) throws InterruptedException {
+        final long time0 = System.nanoTime();
+        final ThreadLocal<Cartoonify> workers = ThreadLocal.withInitial(() -> new Cartoonify(settings));
+        final ExecutorService pool = Executors.newFixedThreadPool(numWorkers, r -> {
+            Thread t = new Thread(r, "cartoonify-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        final List<Future<Long>> results = new ArrayList<>();
+        for (String name : names) {
+            results.add(pool.submit(() -> {
+                Cartoonify worker = workers.get();
+                try {
+                    return worker.processPhoto(name);
+                } finally {
+                    // leave the worker ready for its next photo, even after an error
+                    worker.clear();
+                }
+            }));
+        }
+        long time = 0;
+        int done = 0;
+        try {
+            for (int i = 0; i < names.size(); i++) {
+                try {
+                    time += results.get(i).get();
+                    done++;
+                } catch (ExecutionException ex) {
+                    System.err.println("Skipping " + names.get(i) + ": " + ex.getCause());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        final double secs = (System.nanoTime() - time0) / 1e9;
+        // the same message as Cartoonify.main, followed by the throughput
+        System.out.format("Average processing time is %.3f for %d photos.", time / Math.max(done, 1) / 1e3, done);
+        System.out.format("%nProcessed %d photos in %.3f secs (%.2f photos/sec) with %d workers.%n",
+                done, secs, done / secs, numWorkers);
+        if (settings.isDebug()) {
+            System.out.println(settings.getBuffers().stats());
+        }
+        return done;
+    }
+}
@@ -0,0 +1,135 @@
+package com.celanim.cartoonify;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A pool of image arrays, so that the images of one photo can be reused for
+ * the next photo instead of allocating new ones.
+ * <p>
+ * Arrays are kept by length, since every image of a photo is the same size.
+ * The total size of the arrays kept is limited: when a returned array does not
+ * fit, the arrays that were returned longest ago, of any length, are left for
+ * the garbage collector to make room for it.  So a pool whose photos change
+ * size ends up holding arrays of the new size.  This class is thread-safe, so
+ * one pool can be shared by several Cartoonify objects.
+ */
+public class BufferPool {
+
+    /**
+     * The default limit on the arrays kept, in bytes.
+     */
+    public static final long DEFAULT_CAPACITY = 512L * 1024 * 1024;
+
+    private final long capacity;
+
+    /**
+     * The free arrays of each length.
+     */
+    private final Map<Integer, ArrayDeque<int[]>> free = new HashMap<>();
+
+    /**
+     * All the free arrays, in the order they were returned, oldest first.
+     * Arrays hash by identity, so an array taken from the pool is removed in constant time.
+     */
+    private final Set<int[]> returned = new LinkedHashSet<>();
+
+    /**
+     * The total size of the free arrays, in bytes.
+     */
+    private long freeBytes;
+
+    private long reused;
+    private long allocated;
+    private long discarded;
+
+    /**
+     * @param capacity the maximum total size of the arrays kept, in bytes.
+     */
+    public BufferPool(long capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity must be at least zero, not " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Get an array to hold an image.  Its contents are undefined.
+     *
+     * @param length the number of pixels.
+     * @return a free array from the pool, or a new one if there is none of that length.
+     */
+    public synchronized int[] take(int length) {
+        ArrayDeque<int[]> arrays = free.get(length);
+        if (arrays != null && !arrays.isEmpty()) {
+            final int[] array = arrays.pop();
+            returned.remove(array);
+            freeBytes -= 4L * length;
+            reused++;
+            return array;
+        }
+        allocated++;
+        return new int[length];
+    }
+
+    /**
+     * Return an array to the pool, once nothing refers to it any more.
+     *
+     * @param array the array, which may be null.
+     */
+    public synchronized void give(int[] array) {
+        if (array == null) {
+            return;
+        }
+        if (4L * array.length > capacity) {
+            discarded++;
+            return;
+        }
+        while (freeBytes + 4L * array.length > capacity) {
+            // the oldest array of any length is also the oldest of its own length
+            final Iterator<int[]> oldestFirst = returned.iterator();
+            final int[] oldest = oldestFirst.next();
+            oldestFirst.remove();
+            free.get(oldest.length).removeLast();
+            freeBytes -= 4L * oldest.length;
+            discarded++;
+        }
+        free.computeIfAbsent(array.length, len -> new ArrayDeque<>()).push(array);
+        returned.add(array);
+        freeBytes += 4L * array.length;
+    }
+
+    /**
+     * @return the number of arrays taken that were reused from the pool.
+     */
+    public synchronized long reused() {
+        return reused;
+    }
+
+    /**
+     * @return the number of arrays taken that had to be allocated.
+     */
+    public synchronized long allocated() {
+        return allocated;
+    }
+
+    /**
+     * @return the number of arrays given back that were dropped, because they did not
+     *     fit in the pool or to make room for arrays given back later.
+     */
+    public synchronized long discarded() {
+        return discarded;
+    }
+
+    /**
+     * @return a one-line summary of the counters.
+     */
+    public synchronized String stats() {
+        return String.format("Image buffers: %d reused, %d allocated, %d discarded, %.1f MB free.",
+                reused, allocated, discarded, freeBytes / (1024.0 * 1024.0));
+    }
+}
@@ -1,16 +1,14 @@
 package com.celanim.cartoonify;
 
-import org.jocl.*;
-
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import javax.imageio.ImageIO;
 
-import static org.jocl.CL.*;
-
 /**
  * Processes lots of photos and uses edge detection and colour reduction to make them cartoon-like.
  * <p>
@@ -77,6 +75,51 @@ public class Cartoonify {
 
     private boolean useGPU = false;
 
+    /**
+     * True means process each photo on the CPU in one fused pass over tiles of rows.
+     */
+    private boolean fused = false;
+
+    /**
+     * True means blur with a separable approximation of the Gaussian filter.
+     */
+    private boolean separableBlur = false;
+
+    /**
+     * The number of threads that process the row bands of each image.
+     */
+    private int numThreads = 1;
+
+    /**
+     * Runs the row bands of each stage in parallel, or null to run each stage sequentially.
+     */
+    private ForkJoinPool pool;
+
+    /**
+     * The number of photos that main processes at once, or 0 to process them one at a time.
+     */
+    private int numWorkers = 0;
+
+    /**
+     * True means the photos are frames of a video, processed by a Sequence.
+     */
+    private boolean sequence = false;
+
+    /**
+     * Implements colour reduction and masking on the CPU.
+     */
+    private PixelEngine engine = PixelEngine.SCALAR;
+
+    /**
+     * Supplies the arrays for new images, and takes them back when the stack is cleared.
+     */
+    private BufferPool buffers = new BufferPool(BufferPool.DEFAULT_CAPACITY);
+
+    /**
+     * The OpenCL device and kernels used with -g, or null to use the shared session.
+     */
+    private OpenCLSession openCL;
+
     /**
      * The width of all the images.
      */
@@ -108,6 +151,28 @@ public class Cartoonify {
         currImage = -1;  // no image loaded initially
     }
 
+    /**
+     * Create a new photo-to-cartoon processor with the same settings as another one,
+     * but with its own empty stack of images.  The row bands of both processors
+     * share the same threads.
+     *
+     * @param settings the processor to copy the settings from.
+     */
+    public Cartoonify(Cartoonify settings) {
+        this();
+        edgeThreshold = settings.edgeThreshold;
+        numColours = settings.numColours;
+        debug = settings.debug;
+        useGPU = settings.useGPU;
+        fused = settings.fused;
+        separableBlur = settings.separableBlur;
+        numThreads = settings.numThreads;
+        pool = settings.pool;
+        buffers = settings.buffers;
+        openCL = settings.openCL;
+        engine = settings.engine;
+    }
+
     /**
      * @return What level of colour change should be considered an edge.
      */
@@ -160,6 +225,144 @@ public class Cartoonify {
         this.debug = debug;
     }
 
+    /**
+     * @return true if the blur uses two 1D passes instead of the exact 5x5 filter.
+     */
+    public boolean isSeparableBlur() {
+        return separableBlur;
+    }
+
+    /**
+     * Set this to true to blur with two 1D passes of the row sums of the Gaussian
+     * filter, instead of the exact 5x5 filter.  This is faster, but each colour
+     * value may differ from the exact blur by a few units.
+     *
+     * @param separableBlur
+     */
+    public void setSeparableBlur(boolean separableBlur) {
+        this.separableBlur = separableBlur;
+    }
+
+    /**
+     * @return the pool that supplies the arrays for new images.
+     */
+    public BufferPool getBuffers() {
+        return buffers;
+    }
+
+    /**
+     * Set the pool that supplies the arrays for new images.  A pool can be shared.
+     *
+     * @param buffers
+     */
+    public void setBuffers(BufferPool buffers) {
+        this.buffers = buffers;
+    }
+
+    /**
+     * Set which engine implements colour reduction and masking on the CPU.
+     *
+     * @param engine eg. PixelEngine.SCALAR or PixelEngine.vector().
+     */
+    void setPixelEngine(PixelEngine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * @return the OpenCL session used with -g, or null if none has been set or used yet.
+     */
+    public OpenCLSession getOpenCL() {
+        return openCL;
+    }
+
+    /**
+     * @param openCL the OpenCL session to process photos with, or null to use the shared one.
+     */
+    public void setOpenCL(OpenCLSession openCL) {
+        this.openCL = openCL;
+    }
+
+    /**
+     * @return the number of threads used to process each image.
+     */
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    /**
+     * Set the number of threads used to process each image on the CPU.
+     * Each stage is split into bands of rows that are processed in parallel.
+     * The output images are identical for any number of threads.
+     *
+     * @param numThreads 1 means process each image sequentially.
+     */
+    public void setNumThreads(int numThreads) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("number of threads must be at least 1, not " + numThreads);
+        }
+        this.numThreads = numThreads;
+        // the old pool is not shut down, since copies of this object may still share it;
+        // its idle worker threads are daemons that end by themselves
+        pool = numThreads == 1 ? null : new ForkJoinPool(numThreads);
+    }
+
+    /**
+     * Processes some rows of an image.
+     */
+    interface RowBand {
+        /**
+         * @param yFrom the first row to process.
+         * @param yTo one past the last row to process.
+         */
+        void process(int yFrom, int yTo);
+    }
+
+    /**
+     * Process all the rows of the current image size, split into bands that
+     * are run in parallel if there is more than one thread.
+     * Each band must write only to its own rows of the new image.
+     *
+     * @param band processes the rows of one band.
+     */
+    void forEachBand(RowBand band) {
+        if (pool == null || height < 2) {
+            band.process(0, height);
+            return;
+        }
+        // a few bands per thread, so that threads that finish early can help the others
+        final int bandRows = Math.max(1, height / (numThreads * 4));
+        pool.invoke(new Bands(band, 0, height, bandRows));
+    }
+
+    /**
+     * Splits a range of rows in half until it is small enough to process directly.
+     */
+    private static final class Bands extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final RowBand band;
+        private final int yFrom;
+        private final int yTo;
+        private final int bandRows;
+
+        Bands(RowBand band, int yFrom, int yTo, int bandRows) {
+            this.band = band;
+            this.yFrom = yFrom;
+            this.yTo = yTo;
+            this.bandRows = bandRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (yTo - yFrom <= bandRows) {
+                band.process(yFrom, yTo);
+            } else {
+                final int mid = (yFrom + yTo) >>> 1;
+                invokeAll(new Bands(band, yFrom, mid, bandRows), new Bands(band, mid, yTo, bandRows));
+            }
+        }
+    }
+
     /**
      * @return the number of images currently on the stack of images.
      */
@@ -202,6 +405,30 @@ public class Cartoonify {
         return result;
     }
 
+    /**
+     * Remove the current image off the stack and return its array to the buffer pool.
+     */
+    protected void dropImage() {
+        buffers.give(popImage());
+    }
+
+    /**
+     * @return an array for a new image of the current size, whose contents are undefined.
+     */
+    protected int[] newImage() {
+        return buffers.take(width * height);
+    }
+
+    /**
+     * @param which the number of an image, as for <code>cloneImage</code>.
+     * @return the position of that image in the stack.
+     */
+    private int stackPosition(int which) {
+        final int stackPos = which >= 0 ? which : (currImage + which + 1);
+        assert 0 <= stackPos && stackPos <= currImage;
+        return stackPos;
+    }
+
     /**
      * Push a shallow copy of the given image onto the stack.
      * For speed, this copies the pointer to the image, but does not
@@ -214,15 +441,19 @@ public class Cartoonify {
      * @param which the number of the photo to duplicate. From <code>-numImages() .. numImages()-1</code>.
      */
     public void cloneImage(int which) {
-        final int stackPos = which >= 0 ? which : (currImage + which + 1);
-        assert 0 <= stackPos && stackPos <= currImage;
-        pushImage(Arrays.copyOf(pixels[stackPos], width * height));
+        final int[] copy = newImage();
+        System.arraycopy(pixels[stackPosition(which)], 0, copy, 0, width * height);
+        pushImage(copy);
     }
 
     /**
      * Reset the stack of images so that it is empty.
+     * The images are returned to the buffer pool, so they must not be used afterwards.
      */
     public void clear() {
+        for (int i = 0; i <= currImage; i++) {
+            buffers.give(pixels[i]);
+        }
         Arrays.fill(pixels, null);
         currImage = -1;
     }
@@ -248,13 +479,33 @@ public class Cartoonify {
         } else if (width != image.getWidth() || height != image.getHeight()) {
             throw new IOException("Incorrect image size: " + filename);
         }
-        int[] newPixels = image.getRGB(0, 0, width, height, null, 0, width);
+        int[] newPixels = image.getRGB(0, 0, width, height, newImage(), 0, width);
         for (int i = 0; i < newPixels.length; i++) {
             newPixels[i] &= 0x00FFFFFF; // remove any alpha channel, since we will use RGB only
         }
         pushImage(newPixels);
     }
 
+    /**
+     * Push a photo that has already been loaded, eg. by another thread.
+     * Like loadPhoto, this sets the width and height if the stack is empty,
+     * and otherwise checks that the photo is the same size as the current images.
+     *
+     * @param newPixels the photo, without an alpha channel.  The stack takes ownership of it.
+     * @param newWidth  the width of the photo.
+     * @param newHeight the height of the photo.
+     * @throws IOException if the photo is the wrong size.
+     */
+    public void pushPhoto(int[] newPixels, int newWidth, int newHeight) throws IOException {
+        if (numImages() == 0) {
+            width = newWidth;
+            height = newHeight;
+        } else if (width != newWidth || height != newHeight) {
+            throw new IOException("Incorrect image size: " + newWidth + "x" + newHeight);
+        }
+        pushImage(newPixels);
+    }
+
     /**
      * Save the current photo to disk with the given filename.
      * <p>
@@ -292,7 +543,7 @@ public class Cartoonify {
      */
     public void grayscale() {
         int[] oldPixels = currentImage();
-        int[] newPixels = new int[width * height];
+        int[] newPixels = newImage();
         for (int y = 0; y < height; y++) {
             for (int x = 0; x < width; x++) {
                 int rgb = oldPixels[y * width + x];
@@ -318,19 +569,151 @@ public class Cartoonify {
      */
     public void gaussianBlur() {
         long startBlur = System.currentTimeMillis();
-        int[] newPixels = new int[width*height];
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                newPixels[y * width + x] = convolutionGaussian(x, y);
+        int[] oldPixels = currentImage();
+        int[] newPixels = newImage();
+        forEachBand((yFrom, yTo) -> {
+            final int[] scratch = new int[BLUR_SCRATCH * width];
+            for (int y = yFrom; y < yTo; y++) {
+                blurRow(oldPixels, y, newPixels, y * width, scratch);
             }
-        }
+        });
         pushImage(newPixels);
         long endBlur = System.currentTimeMillis();
         if (debug) {
-            System.out.println("  gaussian blurring took " + (endBlur - startBlur) / 1e3 + " secs.");
+            System.out.println("  gaussian blurring took " + (endBlur - startBlur) / 1e3 + " secs." + onThreads());
         }
     }
 
+    /**
+     * The number of ints per column that <code>blurRow</code> needs in its scratch array.
+     */
+    static final int BLUR_SCRATCH = 6;
+
+    /**
+     * 2 * 2^32 / 318, rounded up.  Multiplying 2 * sum + 159 by this and shifting
+     * right by 32 is the same as <code>clamp(sum / GAUSSIAN_SUM)</code>, for any
+     * sum of the Gaussian filter.  There are no ties, since GAUSSIAN_SUM is odd.
+     */
+    private static final long GAUSSIAN_RECIPROCAL = (1L << 32) / 318 + 1;
+
+    /**
+     * 2^40 / (2 * 159 * 159), rounded up, for the separable blur, which divides by 159 twice.
+     */
+    private static final long SEPARABLE_RECIPROCAL = (1L << 40) / (2 * 159 * 159) + 1;
+
+    /**
+     * Blurs one row of an image, using integer arithmetic only.
+     * <p>
+     * The exact blur gives the same pixels as <code>gaussianPixel</code>.  Each
+     * column of the Gaussian filter is symmetric, and there are only three
+     * different columns, so each pixel is the sum of five vertical sums that are
+     * shared with its neighbours.  Red and blue are summed together, in the two
+     * 16-bit halves of an int.  The rows above and below are reflected at the
+     * top and bottom, so only the two columns at each side need <code>wrap</code>.
+     *
+     * @param src the image to blur, which is <code>width</code> by <code>height</code>.
+     * @param y the row to blur.
+     * @param dst where to put the blurred row.
+     * @param dstOffset the index of the first pixel of the row in dst.
+     * @param scratch <code>BLUR_SCRATCH * width</code> ints, for the vertical sums.
+     */
+    void blurRow(int[] src, int y, int[] dst, int dstOffset, int[] scratch) {
+        final int w = width;
+        final int row0 = wrap(y - 2, height) * w;
+        final int row1 = wrap(y - 1, height) * w;
+        final int row2 = y * w;
+        final int row3 = wrap(y + 1, height) * w;
+        final int row4 = wrap(y + 2, height) * w;
+        final int rbOuter = 0, rbInner = w, rbCentre = 2 * w;
+        final int gOuter = 3 * w, gInner = 4 * w, gCentre = 5 * w;
+        if (separableBlur) {
+            // vertical pass with the row sums 17, 38, 49, 38, 17, kept unrounded
+            for (int x = 0; x < w; x++) {
+                final int p0 = src[row0 + x], p1 = src[row1 + x], p2 = src[row2 + x];
+                final int p3 = src[row3 + x], p4 = src[row4 + x];
+                final int rb2 = (p0 & 0xFF00FF) + (p4 & 0xFF00FF);
+                final int rb1 = (p1 & 0xFF00FF) + (p3 & 0xFF00FF);
+                final int g2 = ((p0 >> 8) & 0xFF) + ((p4 >> 8) & 0xFF);
+                final int g1 = ((p1 >> 8) & 0xFF) + ((p3 >> 8) & 0xFF);
+                final int rb = 17 * rb2 + 38 * rb1 + 49 * (p2 & 0xFF00FF);
+                // red, blue and green, in that order
+                scratch[x] = rb >>> 16;
+                scratch[w + x] = rb & 0xFFFF;
+                scratch[2 * w + x] = 17 * g2 + 38 * g1 + 49 * ((p2 >> 8) & 0xFF);
+            }
+        } else {
+            // the vertical sums of each column with the outer (2,4,5,4,2), inner (4,9,12,9,4)
+            // and centre (5,12,15,12,5) columns of the filter
+            for (int x = 0; x < w; x++) {
+                final int p0 = src[row0 + x], p1 = src[row1 + x], p2 = src[row2 + x];
+                final int p3 = src[row3 + x], p4 = src[row4 + x];
+                final int rb2 = (p0 & 0xFF00FF) + (p4 & 0xFF00FF);
+                final int rb1 = (p1 & 0xFF00FF) + (p3 & 0xFF00FF);
+                final int rb0 = p2 & 0xFF00FF;
+                final int g2 = ((p0 >> 8) & 0xFF) + ((p4 >> 8) & 0xFF);
+                final int g1 = ((p1 >> 8) & 0xFF) + ((p3 >> 8) & 0xFF);
+                final int g0 = (p2 >> 8) & 0xFF;
+                scratch[rbOuter + x] = 2 * rb2 + 4 * rb1 + 5 * rb0;
+                scratch[rbInner + x] = 4 * rb2 + 9 * rb1 + 12 * rb0;
+                scratch[rbCentre + x] = 5 * rb2 + 12 * rb1 + 15 * rb0;
+                scratch[gOuter + x] = 2 * g2 + 4 * g1 + 5 * g0;
+                scratch[gInner + x] = 4 * g2 + 9 * g1 + 12 * g0;
+                scratch[gCentre + x] = 5 * g2 + 12 * g1 + 15 * g0;
+            }
+        }
+        // the interior columns need no wrapping
+        for (int x = 2; x < w - 2; x++) {
+            dst[dstOffset + x] = blurFromSums(scratch, x - 2, x - 1, x, x + 1, x + 2);
+        }
+        for (int x = 0; x < w; x++) {
+            if (x == 2 && w > 4) {
+                x = w - 2;  // skip the interior
+            }
+            dst[dstOffset + x] = blurFromSums(scratch, wrap(x - 2, w), wrap(x - 1, w), x, wrap(x + 1, w), wrap(x + 2, w));
+        }
+    }
+
+    /**
+     * Adds up the vertical sums that <code>blurRow</code> has put in scratch, for one pixel.
+     *
+     * @param x0 the column two to the left of the pixel, and so on up to x4.
+     * @return the blurred pixel.
+     */
+    private int blurFromSums(int[] scratch, int x0, int x1, int x2, int x3, int x4) {
+        final int w = width;
+        if (separableBlur) {
+            final int red = 17 * (scratch[x0] + scratch[x4]) + 38 * (scratch[x1] + scratch[x3]) + 49 * scratch[x2];
+            final int blue = 17 * (scratch[w + x0] + scratch[w + x4]) + 38 * (scratch[w + x1] + scratch[w + x3])
+                    + 49 * scratch[w + x2];
+            final int g = 2 * w;
+            final int green = 17 * (scratch[g + x0] + scratch[g + x4]) + 38 * (scratch[g + x1] + scratch[g + x3])
+                    + 49 * scratch[g + x2];
+            return (divideBySeparableSum(red) << 16) | (divideBySeparableSum(green) << 8) | divideBySeparableSum(blue);
+        }
+        final int rb = scratch[x0] + scratch[w + x1] + scratch[2 * w + x2] + scratch[w + x3] + scratch[x4];
+        final int g = 3 * w;
+        final int green = scratch[g + x0] + scratch[g + w + x1] + scratch[g + 2 * w + x2] + scratch[g + w + x3]
+                + scratch[g + x4];
+        return (divideByGaussianSum(rb >>> 16) << 16) | (divideByGaussianSum(green) << 8)
+                | divideByGaussianSum(rb & 0xFFFF);
+    }
+
+    /**
+     * @param sum a sum of the separable filter times colour values, from 0 up to 255 * 159 * 159.
+     * @return sum / (159 * 159), rounded to the nearest integer.
+     */
+    private static int divideBySeparableSum(int sum) {
+        return (int) (((2L * sum + 159 * 159) * SEPARABLE_RECIPROCAL) >>> 40);
+    }
+
+    /**
+     * @param sum a sum of the Gaussian filter times colour values, from 0 up to 255 * 159.
+     * @return the same as <code>clamp(sum / GAUSSIAN_SUM)</code>, but without a division.
+     */
+    static int divideByGaussianSum(int sum) {
+        return (int) (((2L * sum + 159) * GAUSSIAN_RECIPROCAL) >>> 32);
+    }
+
     /**
      * Detects edges in the current image and adds an image where black pixels
      * mark the edges and the other pixels are all white.
@@ -341,23 +724,24 @@ public class Cartoonify {
      */
     public void sobelEdgeDetect() {
         long startEdges = System.currentTimeMillis();
-        int totalPixels = width*height;
-        int[] newPixels = new int[totalPixels];
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                // we could take use sqrt(vertGrad^2 + horizGrad^2), but simple addition catches most edges.
-                int totalGradient = convolutionSobel(x,y);
-                if (totalGradient >= edgeThreshold) {
-                    newPixels[y * width + x] = black; // we colour the edges black
-                } else {
-                    newPixels[y * width + x] = white;
+        int[] newPixels = newImage();
+        forEachBand((yFrom, yTo) -> {
+            for (int y = yFrom; y < yTo; y++) {
+                for (int x = 0; x < width; x++) {
+                    // we could take use sqrt(vertGrad^2 + horizGrad^2), but simple addition catches most edges.
+                    int totalGradient = convolutionSobel(x,y);
+                    if (totalGradient >= edgeThreshold) {
+                        newPixels[y * width + x] = black; // we colour the edges black
+                    } else {
+                        newPixels[y * width + x] = white;
+                    }
                 }
             }
-        }
+        });
         pushImage(newPixels);
         long endEdges = System.currentTimeMillis();
         if (debug) {
-            System.out.println("  sobel edge detect took " + (endEdges - startEdges) / 1e3 + " secs.");
+            System.out.println("  sobel edge detect took " + (endEdges - startEdges) / 1e3 + " secs." + onThreads());
         }
     }
 
@@ -370,19 +754,13 @@ public class Cartoonify {
     public void reduceColours() {
         long startQuantize = System.currentTimeMillis();
         int[] oldPixels = currentImage();
-        int[] newPixels = new int[width * height];
-        for (int index = 0; index < newPixels.length; index++) {
-            int rgb = oldPixels[index];
-            int newRed = quantizeColour(red(rgb), numColours);
-            int newGreen = quantizeColour(green(rgb), numColours);
-            int newBlue = quantizeColour(blue(rgb), numColours);
-            int newRGB = createPixel(newRed, newGreen, newBlue);
-            newPixels[index] = newRGB;
-        }
+        int[] newPixels = newImage();
+        forEachBand((yFrom, yTo) ->
+                engine.reduceColours(oldPixels, newPixels, yFrom * width, yTo * width, numColours));
         pushImage(newPixels);
         long endQuantize = System.currentTimeMillis();
         if (debug) {
-            System.out.println("  colour reduction took  " + (endQuantize - startQuantize) / 1e3 + " secs.");
+            System.out.println("  colour reduction took  " + (endQuantize - startQuantize) / 1e3 + " secs." + onThreads());
         }
     }
 
@@ -406,9 +784,15 @@ public class Cartoonify {
      * @return a discrete colour value (0..COLOUR_MASK).
      */
     int quantizeColour(int colourValue, int numPerChannel) {
+        return quantize(colourValue, numPerChannel);
+    }
+
+    /**
+     * The same as quantizeColour, for code that has no Cartoonify object.
+     */
+    static int quantize(int colourValue, int numPerChannel) {
         float colour = colourValue / (COLOUR_MASK + 1.0f) * numPerChannel;
-        //IMPORTANT NOTE: due to the different implemention of the "round" funciton in OpenCL, 
-        //you need to use 0.49999f instead of 0.5f in your kernel code
+        // the OpenCL kernels look these values up in a QuantizationTable, so they need no rounding of their own
         int discrete = Math.round(colour - 0.5f);
         assert 0 <= discrete && discrete < numPerChannel;
         int newColour = discrete * COLOUR_MASK / (numPerChannel - 1);
@@ -430,25 +814,26 @@ public class Cartoonify {
      */
     public void mergeMask(int maskImage, int maskColour, int otherImage) {
         long startMasking = System.currentTimeMillis();
-        cloneImage(maskImage);
-        int[] maskPixels = popImage();
-        cloneImage(otherImage);
-        int[] photoPixels = popImage();
-        int[] newPixels = new int[width * height];
-        for (int index = 0; index < newPixels.length; index++) {
-            if (maskPixels[index] == maskColour) {
-                newPixels[index] = photoPixels[index];
-            } else {
-                newPixels[index] = maskPixels[index];
-            }
-        }
+        // the input images are only read, so they do not need to be copied
+        int[] maskPixels = pixels[stackPosition(maskImage)];
+        int[] photoPixels = pixels[stackPosition(otherImage)];
+        int[] newPixels = newImage();
+        forEachBand((yFrom, yTo) ->
+                engine.mergeMask(maskPixels, maskColour, photoPixels, newPixels, yFrom * width, yTo * width));
         pushImage(newPixels);
         long endMasking = System.currentTimeMillis();
         if (debug) {
-            System.out.println("  masking edges took     " + (endMasking - startMasking) / 1e3 + " secs.");
+            System.out.println("  masking edges took     " + (endMasking - startMasking) / 1e3 + " secs." + onThreads());
         }
     }
 
+    /**
+     * @return a suffix for the debug timing messages, saying how many threads were used.
+     */
+    private String onThreads() {
+        return pool == null ? "" : " (" + numThreads + " threads)";
+    }
+
     /**
      * This applies the given N*N filter around the pixel (xCentre,yCentre).
      * <p>
@@ -491,6 +876,16 @@ public class Cartoonify {
         return sum;
     }
     int convolutionGaussian(int xCentre, int yCentre) {
+        return gaussianPixel(currentImage(), xCentre, yCentre);
+    }
+
+    /**
+     * Applies the Gaussian filter around the pixel (xCentre,yCentre) of any image of the current size.
+     *
+     * @param src the pixels of the image to blur.
+     * @return the blurred pixel.
+     */
+    int gaussianPixel(int[] src, int xCentre, int yCentre) {
         int red=0, green=0, blue=0;
         int[] filter = {
                 2, 4, 5, 4, 2, // sum=17
@@ -503,7 +898,7 @@ public class Cartoonify {
             int y = wrap(yCentre + filterY - 2, height);
             for (int filterX = 0; filterX < 5; filterX++) {
                 int x = wrap(xCentre + filterX - 2, width);
-                int rgb = pixel(x, y);
+                int rgb = src[y * width + x];
                 int filterVal = filter[filterY * 5 + filterX];
                 red += colourValue(rgb, RED) * filterVal;
                 green += colourValue(rgb, GREEN) * filterVal;
@@ -514,6 +909,23 @@ public class Cartoonify {
         return createPixel(clamp(red/ GAUSSIAN_SUM),clamp(green/ GAUSSIAN_SUM),clamp(blue/ GAUSSIAN_SUM));
     }
     int convolutionSobel(int xCentre, int yCentre) {
+        return sobelGradient(currentImage(), wrap(yCentre - 1, height) * width, yCentre * width,
+                wrap(yCentre + 1, height) * width, xCentre);
+    }
+
+    /**
+     * Applies the Sobel filters around one pixel, given the three rows of pixels around it.
+     * The rows can come from any array, so the rows above and below need not be next to it.
+     *
+     * @param src the array that contains the rows.
+     * @param above the index in src of the first pixel of the row above.
+     * @param centre the index in src of the first pixel of the row that contains the pixel.
+     * @param below the index in src of the first pixel of the row below.
+     * @param xCentre the column of the pixel.
+     * @return the sum of the absolute vertical and horizontal gradients of each colour.
+     */
+    int sobelGradient(int[] src, int above, int centre, int below, int xCentre) {
+        final int[] rows = {above, centre, below};
         int redVertical=0;
         int blueVertical=0;
         int greenVertical=0;
@@ -533,10 +945,9 @@ public class Cartoonify {
         };
 
         for (int filterY = 0; filterY < 3; filterY++) {
-            int y = wrap(yCentre + filterY - 1, height);
             for (int filterX = 0; filterX < 3; filterX++) {
                 int x = wrap(xCentre + filterX - 1, width);
-                int rgb = pixel(x, y);
+                int rgb = src[rows[filterY] + x];
                 int filterVertical = filter_vertical[filterY * 3 + filterX];
                 int filterHorizontal = filter_horizontal[filterY * 3 + filterX];
                 redHorizontal += colourValue(rgb, RED) * filterHorizontal;
@@ -681,11 +1092,7 @@ public class Cartoonify {
         final String newName = baseName + "_cartoon" + extn;
         //Please do NOT change the start of time measurement
         final long time0 = System.currentTimeMillis();
-        if (useGPU) {
-            processPhotoOpenCL();
-        } else {
-            processPhotoOnCPU();
-        }
+        processCurrentPhoto();
         //Please do NOT change the end of time measurement
         long time1 = System.currentTimeMillis();
         //Please do NOT remove or change this output message
@@ -694,14 +1101,14 @@ public class Cartoonify {
         if (debug) {
             // At this stage the stack of images is (from bottom to top):
             //  original, blurred, edges, original, quantized, final
-            popImage();
+            dropImage();
             savePhoto(baseName + "_colours" + extn);
-            popImage();
-            popImage();
+            dropImage();
+            dropImage();
             savePhoto(baseName + "_edges" + extn);
-            popImage();
+            dropImage();
             savePhoto(baseName + "_blurred" + extn);
-            popImage();
+            dropImage();
             assert numImages() == 1;
         }
         clear();
@@ -710,159 +1117,63 @@ public class Cartoonify {
 
 
     /**
-     * Implement this method to process one input photo on GPU or GPU and CPU
+     * Process the current photo with the stages chosen by the flags, leaving the
+     * cartoon on top of the stack.
+     */
+    protected void processCurrentPhoto() {
+        if (useGPU) {
+            processPhotoOpenCL();
+        } else if (fused && !debug) {
+            // debug needs each intermediate image, so it always runs the stages separately
+            processPhotoFused();
+        } else {
+            processPhotoOnCPU();
+        }
+    }
+
+    /**
+     * Process one input photo on the OpenCL device, through the shared session.
+     * If the device fails, the photo is left unprocessed and the error is thrown,
+     * so that it is not saved as a cartoon.
+     *
+     * @throws org.jocl.CLException if there is no OpenCL device, or it fails.
+     * @throws IllegalStateException if the thread is interrupted while waiting for the
+     *     device, with its interrupt flag set again.
      */
     protected void processPhotoOpenCL() {
+        if (openCL == null) {
+            openCL = OpenCLSession.shared();
+        }
+        final OpenCLSession.Frame frame;
         try {
-            // We can read the kernel file to a string using below code
-            final String srcCode = JOCLUtil.readResourceToString("/com/celanim/cartoonify/kernel.cl");
-
-            final int photoSize = width*height;
-            final int workgroupsize = 64;// the preferred group size multiple on AMD
-            final int extra = photoSize%workgroupsize;
-            final int padding = extra==0?0:workgroupsize-extra;
-            final int length = photoSize+padding;
-            // Enable openCL exceptions
-            CL.setExceptionsEnabled(true);
-            //
-            final int platformIndex = 0; // Platform index
-            final long deviceType = CL.CL_DEVICE_TYPE_GPU; // Show GPU device type
-            final int deviceIndex = 0; // Device number
-
-            ///////////////////////////// OpenCL setup code///////////////////////
-            cl_platform_id[] platforms = JOCLUtil.getAllPlatforms();
-            cl_platform_id platform = platforms[platformIndex];// Get the selected platform
-
-            // Get all devices on the selected 'platform'
-            cl_device_id[] devices = JOCLUtil.getAllDevices(platform, deviceType);
-            cl_device_id device = devices[deviceIndex]; // Get a single device id
-            // Initialize the context properties
-            cl_context_properties contextProperties = new cl_context_properties();
-            contextProperties.addProperty(CL_CONTEXT_PLATFORM, platform);
-            // Create a context for the selected device with contextProperties
-            cl_context context = clCreateContext(contextProperties, 1, new cl_device_id[] { device }, null, null, null);
-            /////////////////////////// End of OpenCL setup
-            /////////////////////////// code///////////////////////////////////
-
-            // create three queues on the same context of the GPU device.
-            @SuppressWarnings("deprecation")
-            cl_command_queue queueGaussian = clCreateCommandQueue(context, device, 0, null);
-            @SuppressWarnings("deprecation")
-            cl_command_queue queueSobel = clCreateCommandQueue(context, device, 0, null);
-            @SuppressWarnings("deprecation")
-            cl_command_queue queueReduceColours = clCreateCommandQueue(context, device, 0, null);
-            @SuppressWarnings("deprecation")
-            cl_command_queue queueMergeMask = clCreateCommandQueue(context, device, 0, null);
-
-            // Create input array and output array for debug
-            int a[] = Arrays.copyOf(currentImage(),length);
-            int outputGaussian[] = new int[length];
-            int outputSobel[] = new int[length];
-            int outputReduce[] = new int[length];
-            int outputMerge[] = new int[length];
-
-            // Allocate OpenCL-hosted memory for inputs and output
-            Pointer ptrCur = Pointer.to(a);
-            Pointer ptrGaussian = Pointer.to(outputGaussian);
-            Pointer ptrSobel = Pointer.to(outputSobel);
-            Pointer ptrReduce = Pointer.to(outputReduce);
-            Pointer ptrMerge = Pointer.to(outputMerge);
-
-            cl_mem memInOut = clCreateBuffer(context, CL_MEM_READ_WRITE | CL_MEM_COPY_HOST_PTR, Sizeof.cl_int * length,
-                    ptrCur, null);
-            cl_mem memGaussianInOut = clCreateBuffer(context, CL_MEM_READ_WRITE | CL_MEM_COPY_HOST_PTR, Sizeof.cl_int * length,
-                    ptrGaussian, null);
-            cl_mem memSobelInOut = clCreateBuffer(context, CL_MEM_READ_WRITE | CL_MEM_COPY_HOST_PTR, Sizeof.cl_int * length,
-                    ptrSobel, null);
-            cl_mem memReduceInOut = clCreateBuffer(context, CL_MEM_READ_WRITE | CL_MEM_COPY_HOST_PTR, Sizeof.cl_int * length,
-                    ptrReduce, null);
-            cl_mem memMergeInOut = clCreateBuffer(context, CL_MEM_READ_WRITE | CL_MEM_COPY_HOST_PTR, Sizeof.cl_int * length,
-                    ptrMerge, null);
-
-            cl_program program = clCreateProgramWithSource(context, 1, new String[] { srcCode }, null, null);
-            clBuildProgram(program, 0, null, null, null, null);
-
-            cl_kernel gaussianKernel = clCreateKernel(program, "gaussianBlur", null);
-            clSetKernelArg(gaussianKernel, 0, Sizeof.cl_mem, Pointer.to(memInOut));
-            clSetKernelArg(gaussianKernel, 1, Sizeof.cl_mem, Pointer.to(memGaussianInOut));
-            clSetKernelArg(gaussianKernel, 2, Sizeof.cl_int, Pointer.to(new int[] {width}));
-            clSetKernelArg(gaussianKernel, 3, Sizeof.cl_int, Pointer.to(new int[] {height}));
-
-            cl_kernel sobelKernel = clCreateKernel(program, "sobelEdgeDetect", null);
-            clSetKernelArg(sobelKernel, 0, Sizeof.cl_mem, Pointer.to(memGaussianInOut));
-            clSetKernelArg(sobelKernel, 1, Sizeof.cl_mem, Pointer.to(memSobelInOut));
-            clSetKernelArg(sobelKernel, 2, Sizeof.cl_int, Pointer.to(new int[] {width}));
-            clSetKernelArg(sobelKernel, 3, Sizeof.cl_int, Pointer.to(new int[] {height}));
-            clSetKernelArg(sobelKernel, 4, Sizeof.cl_int, Pointer.to(new int[] {edgeThreshold}));
-
-            cl_kernel reduceColoursKernel = clCreateKernel(program, "reduceColours", null);
-            clSetKernelArg(reduceColoursKernel, 0, Sizeof.cl_mem, Pointer.to(memInOut));
-            clSetKernelArg(reduceColoursKernel, 1, Sizeof.cl_mem, Pointer.to(memReduceInOut));
-            clSetKernelArg(reduceColoursKernel, 2, Sizeof.cl_int, Pointer.to(new int[] {numColours}));
-
-            cl_kernel mergeKernel = clCreateKernel(program, "mergeMask", null);
-            clSetKernelArg(mergeKernel, 0, Sizeof.cl_mem, Pointer.to(memSobelInOut));
-            clSetKernelArg(mergeKernel, 1, Sizeof.cl_mem, Pointer.to(memReduceInOut));
-            clSetKernelArg(mergeKernel, 2, Sizeof.cl_mem, Pointer.to(memMergeInOut));
-            clSetKernelArg(mergeKernel, 3, Sizeof.cl_int, Pointer.to(new int[] {white}));
-
-            // Set the work-item dimensions
-            long global_work_size[] = new long[] { length }; // Global work group size is the number of repeats
-            long local_work_size[] = new long[] { workgroupsize };
-
-            //Gaussian Blur event
-            cl_event gaussianEvent = new cl_event();
-            clEnqueueNDRangeKernel(queueGaussian, gaussianKernel, 1, null, global_work_size, local_work_size, 0, null, gaussianEvent);
-            //Wait for gaussian
-            CL.clWaitForEvents(1, new cl_event[] {gaussianEvent});
-            //Read the result for debug
-            clEnqueueReadBuffer(queueGaussian, memGaussianInOut, CL_TRUE, 0, length * Sizeof.cl_int, ptrGaussian, 1, new cl_event[] {gaussianEvent}, null);
-
-            //Sobel Event
-            cl_event sobelEvent = new cl_event();
-            clEnqueueNDRangeKernel(queueSobel, sobelKernel, 1, null, global_work_size, local_work_size, 0, null,
-                    sobelEvent);
-            clEnqueueReadBuffer(queueSobel, memSobelInOut, CL_TRUE, 0, length * Sizeof.cl_int, ptrSobel, 1, new cl_event[] {sobelEvent}, null);
-
-            //reduce color event
-            cl_event reduceColoursEvent = new cl_event();
-            clEnqueueNDRangeKernel(queueReduceColours, reduceColoursKernel, 1, null, global_work_size, local_work_size, 0, null,
-                    reduceColoursEvent);
-            clEnqueueReadBuffer(queueReduceColours, memReduceInOut, CL_TRUE, 0, length * Sizeof.cl_int, ptrReduce, 1, new cl_event[] {reduceColoursEvent}, null);
-
-            //Wait for sobel and reduce colours flr merge event
-            CL.clWaitForEvents(2, new cl_event[] {reduceColoursEvent, sobelEvent});
-            cl_event mergeEvent = new cl_event();
-            clEnqueueNDRangeKernel(queueMergeMask, mergeKernel, 1, null, global_work_size, local_work_size, 0, null,
-                    mergeEvent
-            );
-            clEnqueueReadBuffer(queueMergeMask, memMergeInOut, CL_TRUE, 0, length * Sizeof.cl_int, ptrMerge, 1, new cl_event[] {mergeEvent}, null);
-
-            clReleaseMemObject(memInOut);
-            clReleaseKernel(gaussianKernel);
-            clReleaseKernel(sobelKernel);
-            clReleaseKernel(reduceColoursKernel);
-            clReleaseKernel(mergeKernel);
-            clReleaseProgram(program);
-            clReleaseCommandQueue(queueGaussian);
-            clReleaseCommandQueue(queueSobel);
-            clReleaseCommandQueue(queueReduceColours);
-            clReleaseCommandQueue(queueMergeMask);
-            clReleaseContext(context);
-
-            final long time1 = System.nanoTime();
-            if(debug) {
-                pushImage(Arrays.copyOf(outputGaussian, photoSize));
-                pushImage(Arrays.copyOf(outputSobel, photoSize));
-                cloneImage(0);
-                pushImage(Arrays.copyOf(outputReduce, photoSize));
+            frame = openCL.submit(currentImage(), width, height, edgeThreshold, numColours, white);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for the OpenCL device", ex);
+        }
+        final int[] merged = newImage();
+        final int[] blurred = debug ? newImage() : null;
+        final int[] edges = debug ? newImage() : null;
+        final int[] colours = debug ? newImage() : null;
+        boolean finished = false;
+        try {
+            frame.finish(merged, blurred, edges, colours);
+            finished = true;
+        } finally {
+            if (!finished) {
+                buffers.give(merged);
+                buffers.give(blurred);
+                buffers.give(edges);
+                buffers.give(colours);
             }
-            pushImage(Arrays.copyOf(outputMerge, photoSize));
-        } catch (Exception ex) {
-            System.err.print("Error occurred! " + ex.toString());
         }
-
-
+        if (debug) {
+            pushImage(blurred);
+            pushImage(edges);
+            cloneImage(0);
+            pushImage(colours);
+        }
+        pushImage(merged);
     }
 
     /**
@@ -880,6 +1191,56 @@ public class Cartoonify {
         mergeMask(edgeMask, white, -1);
     }
 
+    /**
+     * The approximate size in bytes of the blurred rows of one tile, chosen to fit in the L2 cache.
+     */
+    private static final int TILE_BYTES = 256 * 1024;
+
+    /**
+     * Process one input photo on the CPU in a single pass, with the same result as
+     * <code>processPhotoOnCPU</code>, but only the final image is pushed on the stack.
+     */
+    protected void processPhotoFused() {
+        processPhotoFused(Math.max(8, TILE_BYTES / (4 * width)));
+    }
+
+    /**
+     * Process the current photo one tile of rows at a time.  Each tile is blurred
+     * into a small buffer, including one extra row above and below it for the
+     * Sobel filter (which needs two more rows of the photo for the blur).
+     * The edges of the blurred rows are detected and merged with the quantized
+     * colours of the photo straight away, so the blurred, edge and quantized
+     * images are never stored in full.
+     *
+     * @param tileRows the number of rows in each tile.
+     */
+    void processPhotoFused(int tileRows) {
+        final int[] photo = currentImage();
+        final int[] newPixels = newImage();
+        forEachBand((yFrom, yTo) -> {
+            final int[] blurred = new int[(Math.min(tileRows, yTo - yFrom) + 2) * width];
+            final int[] scratch = new int[BLUR_SCRATCH * width];
+            for (int tileFrom = yFrom; tileFrom < yTo; tileFrom += tileRows) {
+                final int tileTo = Math.min(tileFrom + tileRows, yTo);
+                // blurred row r of the photo is row (r - tileFrom + 1) of the buffer, reflected at the edges
+                for (int r = tileFrom - 1; r <= tileTo; r++) {
+                    blurRow(photo, wrap(r, height), blurred, (r - tileFrom + 1) * width, scratch);
+                }
+                for (int y = tileFrom; y < tileTo; y++) {
+                    final int centre = (y - tileFrom + 1) * width;
+                    // reduce the colours of the whole row, then draw the edges over them
+                    engine.reduceColours(photo, newPixels, y * width, (y + 1) * width, numColours);
+                    for (int x = 0; x < width; x++) {
+                        if (sobelGradient(blurred, centre - width, centre, centre + width, x) >= edgeThreshold) {
+                            newPixels[y * width + x] = black;
+                        }
+                    }
+                }
+            }
+        });
+        pushImage(newPixels);
+    }
+
 
     /**
      * Uses the given command line arguments to set Cartoonify options.
@@ -894,6 +1255,36 @@ public class Cartoonify {
             useGPU = true;
             currArg += 1;
         }
+        if ("-f".equals(args[currArg])) {
+            fused = true;
+            currArg += 1;
+        }
+        if ("-v".equals(args[currArg])) {
+            setPixelEngine(PixelEngine.vector());
+            currArg += 1;
+        }
+        if ("-a".equals(args[currArg])) {
+            setSeparableBlur(true);
+            currArg += 1;
+        }
+        if ("-p".equals(args[currArg])) {
+            setNumThreads(Integer.parseInt(args[currArg + 1]));
+            System.out.println("Using " + getNumThreads() + " threads per photo.");
+            currArg += 2;
+        }
+        if ("-b".equals(args[currArg])) {
+            numWorkers = Integer.parseInt(args[currArg + 1]);
+            System.out.println("Processing " + numWorkers + " photos at once.");
+            currArg += 2;
+        }
+        if ("-s".equals(args[currArg])) {
+            sequence = true;
+            currArg += 1;
+        }
+        if ("-m".equals(args[currArg])) {
+            setBuffers(new BufferPool(Long.parseLong(args[currArg + 1]) * 1024 * 1024));
+            currArg += 2;
+        }
         if ("-d".equals(args[currArg])) {
             setDebug(true);
             currArg += 1;
@@ -915,8 +1306,16 @@ public class Cartoonify {
      * Prints a help/usage message to standard output.
      */
     public void help() {
-        System.out.println("Arguments: [-g] [-d] [-e EdgeThreshold] [-c NumColours] photo1.jpg photo2.jpg ...");
+        System.out.println("Arguments: [-g] [-f] [-v] [-a] [-p Threads] [-b Workers] [-s] [-m Megabytes] [-d] [-e EdgeThreshold] [-c NumColours] photo1.jpg photo2.jpg ...");
         System.out.println("  -g use the GPU, to speed up photo processing.");
+        System.out.println("  -f fuses the CPU stages into one pass over small tiles of each photo (ignored with -d).");
+        System.out.println("  -v uses SIMD colour reduction and masking (needs --add-modules jdk.incubator.vector).");
+        System.out.println("  -a blurs with a faster, separable approximation of the Gaussian filter.");
+        System.out.println("  -p Threads processes each photo on the CPU in row bands, using Threads threads.");
+        System.out.println("  -b Workers processes Workers photos at once, each on its own thread.  Photos may differ in size.");
+        System.out.println("  -s treats the photos as the frames of a video, which must all be the same size,");
+        System.out.println("     and loads, processes and saves them in a pipeline (ignores -b and -d).");
+        System.out.println("  -m Megabytes limits the memory kept for reusing image arrays (default 512).");
         System.out.println("  -d means turn on debugging, which saves intermediate photos.");
         System.out.println("  -e EdgeThreshold values can range from 0 (everything is an edge) up to about 1000 or more.");
         System.out.println("  -c NumColours is the number of discrete values within each colour channel (2..256).");
@@ -936,6 +1335,24 @@ public class Cartoonify {
             System.exit(1);
         }
         int arg = cartoon.setFlags(args, 0);
+        if (cartoon.sequence) {
+            try {
+                new Sequence(cartoon).run(Arrays.asList(args).subList(arg, args.length));
+            } catch (InterruptedException ex) {
+                System.err.println("Interrupted while processing frames.");
+                System.exit(3);
+            }
+            return;
+        }
+        if (cartoon.numWorkers > 0) {
+            try {
+                new Batch(cartoon, cartoon.numWorkers).run(Arrays.asList(args).subList(arg, args.length));
+            } catch (InterruptedException ex) {
+                System.err.println("Interrupted while processing photos.");
+                System.exit(3);
+            }
+            return;
+        }
         long time = 0;
         int done = 0;
         for (; arg < args.length; arg++) {
@@ -944,6 +1361,9 @@ public class Cartoonify {
         }
         //Please do NOT remove or change this output message
         System.out.format("Average processing time is %.3f for %d photos.", time / done / 1e3, done);
+        if (cartoon.isDebug()) {
+            System.out.format("%n%s%n", cartoon.getBuffers().stats());
+        }
     }
 
 }
@@ -0,0 +1,80 @@
+package com.celanim.cartoonify;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compares the tiled 2D blur and edge kernels with the 1D kernels, on whatever
+ * OpenCL device the session finds (a CPU device such as POCL is fine).
+ * <p>
+ * Usage: <code>java com.celanim.cartoonify.KernelBenchmark [Repeats] photo1.jpg photo2.jpg ...</code>
+ * <p>
+ * Each photo is cartoonified once with each kind of kernel to warm up, and the
+ * results are checked to be the same as each other and as the CPU result.  Then
+ * each kind is timed over Repeats runs.  The exit status is 1 if any result differs.
+ */
+public class KernelBenchmark {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length == 0) {
+            System.out.println("Arguments: [Repeats] photo1.jpg photo2.jpg ...");
+            System.exit(1);
+        }
+        int arg = 0;
+        int repeats = 10;
+        if (args[0].matches("[0-9]+")) {
+            repeats = Integer.parseInt(args[0]);
+            arg++;
+        }
+        boolean same = true;
+        try (OpenCLSession session = new OpenCLSession()) {
+            System.out.println("Device: " + session.deviceName());
+            final Cartoonify cart = new Cartoonify();
+            for (; arg < args.length; arg++) {
+                cart.loadPhoto(args[arg]);
+                cart.processPhotoOnCPU();
+                final int[] onCPU = cart.popImage();
+                cart.clear();
+                cart.loadPhoto(args[arg]);
+                final int[] tiled = run(session, cart, true, 1);
+                final int[] flat = run(session, cart, false, 1);
+                if (!Arrays.equals(tiled, onCPU)) {
+                    System.err.println("The tiled kernels differ from the CPU on " + args[arg]);
+                    same = false;
+                }
+                if (!Arrays.equals(flat, onCPU)) {
+                    System.err.println("The 1D kernels differ from the CPU on " + args[arg]);
+                    same = false;
+                }
+                final long time0 = System.nanoTime();
+                run(session, cart, true, repeats);
+                final long time1 = System.nanoTime();
+                run(session, cart, false, repeats);
+                final long time2 = System.nanoTime();
+                System.out.format("%s (%dx%d): tiled %.2f ms, 1D %.2f ms per photo.%n",
+                        args[arg], cart.width(), cart.height(),
+                        (time1 - time0) / 1e6 / repeats, (time2 - time1) / 1e6 / repeats);
+                cart.clear();
+            }
+        }
+        if (!same) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Cartoonify the current image of cart a number of times, one after the other.
+     *
+     * @return the last result.
+     */
+    private static int[] run(OpenCLSession session, Cartoonify cart, boolean tiled, int repeats)
+            throws InterruptedException {
+        session.setTiled(tiled);
+        final int[] result = new int[cart.width() * cart.height()];
+        for (int i = 0; i < repeats; i++) {
+            session.submit(cart.currentImage(), cart.width(), cart.height(),
+                    cart.getEdgeThreshold(), cart.getNumColours(), cart.white).finish(result, null, null, null);
+        }
+        return result;
+    }
+}
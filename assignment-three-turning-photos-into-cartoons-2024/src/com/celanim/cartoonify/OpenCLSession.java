@@ -0,0 +1,511 @@
+package com.celanim.cartoonify;
+
+import org.jocl.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+import static org.jocl.CL.*;
+
+/**
+ * The OpenCL context, compiled kernels and device buffers, kept from one photo to the next.
+ * <p>
+ * Finding a device, creating a context and compiling kernel.cl take far longer than
+ * processing one photo, so a session does them once, when it is created.  The device
+ * buffers are kept too, and are only reallocated when the size of the photos changes.
+ * A GPU is used if there is one, otherwise any other OpenCL device, such as the CPU
+ * device of POCL.
+ * <p>
+ * A session has two slots, each with its own queue and buffers, so one photo can be
+ * uploaded while the kernels of the previous photo run.  Several threads can share a
+ * session: a thread that submits a photo when both slots are busy waits for one.
+ */
+public class OpenCLSession implements AutoCloseable {
+
+    /**
+     * The largest number of work-items used in a work-group.
+     */
+    static final int MAX_WORKGROUP_SIZE = 256;
+
+    private static OpenCLSession shared;
+
+    private final cl_device_id device;
+    private final cl_context context;
+    private final cl_program program;
+    private final cl_kernel gaussianKernel;
+    private final cl_kernel sobelKernel;
+    private final cl_kernel reduceColoursKernel;
+    private final cl_kernel mergeKernel;
+    private final cl_kernel gaussianTiledKernel;
+    private final cl_kernel sobelTiledKernel;
+
+    /**
+     * The number of work-items in each work-group of the 1D kernels.
+     */
+    private final int workGroupSize;
+
+    /**
+     * The width and height of the 2D work-groups of the tiled blur and edge kernels.
+     */
+    private final int gaussianTileSide;
+    private final int sobelTileSide;
+
+    /**
+     * The QuantizationTable of the last photo, in device memory, and its number of colours.
+     * The table is only uploaded again when the number of colours changes.
+     */
+    private cl_mem quantizeTable;
+    private int quantizeColours;
+
+    /**
+     * Whether the blur and edge stages use the tiled kernels.
+     */
+    private boolean tiled = true;
+
+    /**
+     * The buffers of the photos being processed.  While the kernels of one photo run,
+     * the next photo can be uploaded into the other slot.
+     */
+    private final Slot[] slots = new Slot[2];
+
+    /**
+     * The slot that the next photo goes into.
+     */
+    private int nextSlot;
+
+    /**
+     * Find an OpenCL device and compile the kernels for it.
+     *
+     * @throws CLException if there is no OpenCL device, or the kernels do not compile.
+     */
+    @SuppressWarnings("deprecation")
+    public OpenCLSession() {
+        CL.setExceptionsEnabled(true);
+        cl_platform_id platform = null;
+        cl_device_id found = null;
+        for (long deviceType : new long[] {CL_DEVICE_TYPE_GPU, CL_DEVICE_TYPE_ALL}) {
+            for (cl_platform_id p : JOCLUtil.getAllPlatforms()) {
+                try {
+                    found = JOCLUtil.getAllDevices(p, deviceType)[0];
+                    platform = p;
+                    break;
+                } catch (CLException ex) {
+                    // CL_DEVICE_NOT_FOUND: try the next platform
+                }
+            }
+            if (found != null) {
+                break;
+            }
+        }
+        if (found == null) {
+            throw new CLException("No OpenCL device found.");
+        }
+        device = found;
+        cl_context_properties contextProperties = new cl_context_properties();
+        contextProperties.addProperty(CL_CONTEXT_PLATFORM, platform);
+        context = clCreateContext(contextProperties, 1, new cl_device_id[] {device}, null, null, null);
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new Slot(clCreateCommandQueue(context, device, 0, null));
+        }
+
+        final String srcCode = JOCLUtil.readResourceToString("/com/celanim/cartoonify/kernel.cl");
+        program = clCreateProgramWithSource(context, 1, new String[] {srcCode}, null, null);
+        clBuildProgram(program, 0, null, null, null, null);
+        gaussianKernel = clCreateKernel(program, "gaussianBlur", null);
+        sobelKernel = clCreateKernel(program, "sobelEdgeDetect", null);
+        reduceColoursKernel = clCreateKernel(program, "reduceColours", null);
+        mergeKernel = clCreateKernel(program, "mergeMask", null);
+        gaussianTiledKernel = clCreateKernel(program, "gaussianBlurTiled", null);
+        sobelTiledKernel = clCreateKernel(program, "sobelEdgeDetectTiled", null);
+
+        workGroupSize = workGroupSize(Math.min(maxWorkGroupSize(gaussianKernel), maxWorkGroupSize(sobelKernel)));
+        final long[] localMem = new long[1];
+        clGetDeviceInfo(device, CL_DEVICE_LOCAL_MEM_SIZE, Sizeof.cl_ulong, Pointer.to(localMem), null);
+        gaussianTileSide = tileSide(maxWorkGroupSize(gaussianTiledKernel), localMem[0], 2);
+        sobelTileSide = tileSide(maxWorkGroupSize(sobelTiledKernel), localMem[0], 1);
+    }
+
+    /**
+     * @return the most work-items that a work-group of the kernel can have on this device.
+     */
+    private long maxWorkGroupSize(cl_kernel kernel) {
+        final long[] size = new long[1];
+        clGetKernelWorkGroupInfo(kernel, device, CL_KERNEL_WORK_GROUP_SIZE, Sizeof.size_t, Pointer.to(size), null);
+        return size[0];
+    }
+
+    /**
+     * Choose the work-group size of the 1D kernels.
+     *
+     * @param maxWorkItems the most work-items that a work-group can have.
+     * @return the largest power of two up to maxWorkItems and MAX_WORKGROUP_SIZE.
+     */
+    static int workGroupSize(long maxWorkItems) {
+        int size = 1;
+        while (size * 2 <= Math.min(maxWorkItems, MAX_WORKGROUP_SIZE)) {
+            size *= 2;
+        }
+        return size;
+    }
+
+    /**
+     * Choose the side of the square work-groups of a tiled kernel.  The side is a power
+     * of two, with at most maxWorkItems and MAX_WORKGROUP_SIZE work-items in a work-group,
+     * and the tile plus its border must fit in half of the local memory.
+     *
+     * @param maxWorkItems  the most work-items that a work-group can have.
+     * @param localMemBytes the size of the local memory of the device.
+     * @param border        the number of pixels needed beyond each side of the tile.
+     * @return the side of the work-groups, at least 1.
+     */
+    static int tileSide(long maxWorkItems, long localMemBytes, int border) {
+        int side = 1;
+        while (true) {
+            final long next = side * 2;
+            final long tile = (next + 2 * border) * (next + 2 * border) * Sizeof.cl_int;
+            if (next * next > Math.min(maxWorkItems, MAX_WORKGROUP_SIZE) || tile > localMemBytes / 2) {
+                return side;
+            }
+            side *= 2;
+        }
+    }
+
+    /**
+     * @return the number of work-items in each work-group of the 1D kernels.
+     */
+    public int workGroupSize() {
+        return workGroupSize;
+    }
+
+    /**
+     * @return whether the blur and edge stages use the tiled 2D kernels.
+     */
+    public synchronized boolean isTiled() {
+        return tiled;
+    }
+
+    /**
+     * Choose between the tiled 2D kernels, which read the neighbours of each pixel from
+     * local memory, and the 1D kernels, which read them from global memory.  Both give
+     * the same images.  The tiled kernels are used by default.
+     *
+     * @param tiled
+     */
+    public synchronized void setTiled(boolean tiled) {
+        this.tiled = tiled;
+    }
+
+    /**
+     * The session shared by every Cartoonify object that has not been given its own.
+     * It is created the first time it is needed, and lasts until the program exits.
+     *
+     * @return the shared session.
+     * @throws CLException if there is no OpenCL device.
+     */
+    public static synchronized OpenCLSession shared() {
+        if (shared == null) {
+            shared = new OpenCLSession();
+        }
+        return shared;
+    }
+
+    /**
+     * @return the name of the device that the kernels run on.
+     */
+    public String deviceName() {
+        return JOCLUtil.getString(device, CL_DEVICE_NAME);
+    }
+
+    /**
+     * @return the number of pixels the device buffers of the last photo hold, or 0 before the first photo.
+     */
+    synchronized int bufferLength() {
+        return slots[(nextSlot + slots.length - 1) % slots.length].length;
+    }
+
+    /**
+     * Start cartoonifying one photo on the device, without waiting for it.
+     * <p>
+     * The photo is copied, so it can be reused as soon as this returns.  Each kernel waits
+     * only for the kernels whose output it reads, and only the final image is read back.
+     * Call <code>finish</code> on the result to wait for it.  If both slots are busy,
+     * this waits until the oldest photo is finished.
+     *
+     * @param pixels        the photo, in row-major order.
+     * @param width         the width of the photo.
+     * @param height        the height of the photo.
+     * @param edgeThreshold the gradient at which a pixel is an edge.
+     * @param numColours    the number of values in each colour channel.
+     * @param maskColour    the colour of the pixels that are not edges.
+     * @return the photo in progress.
+     * @throws InterruptedException if interrupted while waiting for a free slot.
+     */
+    public synchronized Frame submit(int[] pixels, int width, int height, int edgeThreshold, int numColours,
+            int maskColour) throws InterruptedException {
+        while (slots[nextSlot].busy) {
+            wait();
+        }
+        final Slot slot = slots[nextSlot];
+        nextSlot = (nextSlot + 1) % slots.length;
+        final int photoSize = width * height;
+        slot.ensureBuffers(photoSize);
+        slot.busy = true;
+        try {
+            slot.upload.clear();
+            slot.upload.put(pixels, 0, photoSize);
+            // the padding at the end of the input is never read back, so it is left as it is
+            final cl_event written = new cl_event();
+            clEnqueueWriteBuffer(slot.queue, slot.in, CL_FALSE, 0, (long) Sizeof.cl_int * photoSize,
+                    Pointer.to(slot.upload), 0, null, written);
+
+            // kernels take the values of their arguments when they are enqueued,
+            // so the other slot can set them again straight away
+            final cl_kernel blurKernel = tiled ? gaussianTiledKernel : gaussianKernel;
+            final cl_kernel edgeKernel = tiled ? sobelTiledKernel : sobelKernel;
+            clSetKernelArg(blurKernel, 0, Sizeof.cl_mem, Pointer.to(slot.in));
+            clSetKernelArg(blurKernel, 1, Sizeof.cl_mem, Pointer.to(slot.gaussian));
+            clSetKernelArg(blurKernel, 2, Sizeof.cl_int, Pointer.to(new int[] {width}));
+            clSetKernelArg(blurKernel, 3, Sizeof.cl_int, Pointer.to(new int[] {height}));
+            clSetKernelArg(edgeKernel, 0, Sizeof.cl_mem, Pointer.to(slot.gaussian));
+            clSetKernelArg(edgeKernel, 1, Sizeof.cl_mem, Pointer.to(slot.sobel));
+            clSetKernelArg(edgeKernel, 2, Sizeof.cl_int, Pointer.to(new int[] {width}));
+            clSetKernelArg(edgeKernel, 3, Sizeof.cl_int, Pointer.to(new int[] {height}));
+            clSetKernelArg(edgeKernel, 4, Sizeof.cl_int, Pointer.to(new int[] {edgeThreshold}));
+            if (tiled) {
+                // the local memory for the tile and its border, which has no host data
+                final int blurTile = gaussianTileSide + 4;
+                final int edgeTile = sobelTileSide + 2;
+                clSetKernelArg(blurKernel, 4, (long) Sizeof.cl_int * blurTile * blurTile, null);
+                clSetKernelArg(edgeKernel, 5, (long) Sizeof.cl_int * edgeTile * edgeTile, null);
+            }
+            clSetKernelArg(reduceColoursKernel, 0, Sizeof.cl_mem, Pointer.to(slot.in));
+            clSetKernelArg(reduceColoursKernel, 1, Sizeof.cl_mem, Pointer.to(slot.reduce));
+            clSetKernelArg(reduceColoursKernel, 2, Sizeof.cl_mem, Pointer.to(quantizeTable(numColours)));
+            clSetKernelArg(mergeKernel, 0, Sizeof.cl_mem, Pointer.to(slot.sobel));
+            clSetKernelArg(mergeKernel, 1, Sizeof.cl_mem, Pointer.to(slot.reduce));
+            clSetKernelArg(mergeKernel, 2, Sizeof.cl_mem, Pointer.to(slot.merge));
+            clSetKernelArg(mergeKernel, 3, Sizeof.cl_int, Pointer.to(new int[] {maskColour}));
+
+            final long[] globalWorkSize = new long[] {slot.length};
+            final long[] localWorkSize = new long[] {workGroupSize};
+            final cl_event blurred = new cl_event();
+            final cl_event edges = new cl_event();
+            final cl_event colours = new cl_event();
+            final cl_event merged = new cl_event();
+            final cl_event read = new cl_event();
+            enqueueStencil(slot.queue, blurKernel, gaussianTileSide, width, height, globalWorkSize, localWorkSize,
+                    written, blurred);
+            enqueueStencil(slot.queue, edgeKernel, sobelTileSide, width, height, globalWorkSize, localWorkSize,
+                    blurred, edges);
+            clEnqueueNDRangeKernel(slot.queue, reduceColoursKernel, 1, null, globalWorkSize, localWorkSize,
+                    1, new cl_event[] {written}, colours);
+            clEnqueueNDRangeKernel(slot.queue, mergeKernel, 1, null, globalWorkSize, localWorkSize,
+                    2, new cl_event[] {edges, colours}, merged);
+            slot.download.clear();
+            clEnqueueReadBuffer(slot.queue, slot.merge, CL_FALSE, 0, (long) Sizeof.cl_int * photoSize,
+                    Pointer.to(slot.download), 1, new cl_event[] {merged}, read);
+            clFlush(slot.queue);
+            return new Frame(slot, photoSize, new cl_event[] {written, blurred, edges, colours, merged, read});
+        } catch (RuntimeException ex) {
+            release(slot);
+            throw ex;
+        }
+    }
+
+    /**
+     * Enqueue the blur or edge kernel, over 2D work-groups if it is tiled, or else over
+     * the same 1D range as the other kernels.
+     */
+    private void enqueueStencil(cl_command_queue queue, cl_kernel kernel, int side, int width, int height,
+            long[] globalWorkSize, long[] localWorkSize, cl_event after, cl_event done) {
+        if (tiled) {
+            final long[] global2D = new long[] {roundUp(width, side), roundUp(height, side)};
+            final long[] local2D = new long[] {side, side};
+            clEnqueueNDRangeKernel(queue, kernel, 2, null, global2D, local2D, 1, new cl_event[] {after}, done);
+        } else {
+            clEnqueueNDRangeKernel(queue, kernel, 1, null, globalWorkSize, localWorkSize,
+                    1, new cl_event[] {after}, done);
+        }
+    }
+
+    /**
+     * @return the smallest multiple of size that is at least n.
+     */
+    static int roundUp(int n, int size) {
+        final int extra = n % size;
+        return extra == 0 ? n : n + size - extra;
+    }
+
+    /**
+     * @return the device copy of the QuantizationTable for numColours, uploading it if needed.
+     */
+    private cl_mem quantizeTable(int numColours) {
+        if (quantizeTable == null || quantizeColours != numColours) {
+            final int[] values = QuantizationTable.of(numColours).values();
+            if (quantizeTable != null) {
+                // the device keeps it until the photos that use it are finished
+                clReleaseMemObject(quantizeTable);
+            }
+            quantizeTable = clCreateBuffer(context, CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
+                    (long) Sizeof.cl_int * values.length, Pointer.to(values), null);
+            quantizeColours = numColours;
+        }
+        return quantizeTable;
+    }
+
+    /**
+     * Mark a slot as free, so the next photo can use it.
+     */
+    private synchronized void release(Slot slot) {
+        slot.busy = false;
+        notifyAll();
+    }
+
+    /**
+     * A photo that has been submitted to the device, whose result may not be ready yet.
+     */
+    public final class Frame {
+        private final Slot slot;
+        private final int photoSize;
+
+        /**
+         * The events of the upload, the four kernels and the read back, in that order.
+         */
+        private final cl_event[] events;
+
+        private boolean finished;
+
+        private Frame(Slot slot, int photoSize, cl_event[] events) {
+            this.slot = slot;
+            this.photoSize = photoSize;
+            this.events = events;
+        }
+
+        /**
+         * Wait for the photo, then copy the final image into <code>merged</code>.
+         * The other images are read back from the device only if they are wanted.
+         *
+         * @param merged  receives the final cartoon.
+         * @param blurred receives the blurred photo, or null if it is not wanted.
+         * @param edges   receives the edges, or null if they are not wanted.
+         * @param colours receives the photo with reduced colours, or null if it is not wanted.
+         */
+        public void finish(int[] merged, int[] blurred, int[] edges, int[] colours) {
+            if (finished) {
+                throw new IllegalStateException("photo already finished");
+            }
+            finished = true;
+            try {
+                clWaitForEvents(events.length, events);
+                slot.download.get(merged, 0, photoSize);
+                final long bytes = (long) Sizeof.cl_int * photoSize;
+                if (blurred != null) {
+                    clEnqueueReadBuffer(slot.queue, slot.gaussian, CL_TRUE, 0, bytes, Pointer.to(blurred), 0, null, null);
+                }
+                if (edges != null) {
+                    clEnqueueReadBuffer(slot.queue, slot.sobel, CL_TRUE, 0, bytes, Pointer.to(edges), 0, null, null);
+                }
+                if (colours != null) {
+                    clEnqueueReadBuffer(slot.queue, slot.reduce, CL_TRUE, 0, bytes, Pointer.to(colours), 0, null, null);
+                }
+            } finally {
+                for (cl_event event : events) {
+                    clReleaseEvent(event);
+                }
+                release(slot);
+            }
+        }
+    }
+
+    /**
+     * The device buffers for one photo, the host buffers that it is uploaded from and
+     * read back into, and the queue that processes it.
+     */
+    private final class Slot {
+        private final cl_command_queue queue;
+
+        /**
+         * The number of pixels that the buffers hold, including the padding up to
+         * a whole number of work-groups.  Zero before the first photo.
+         */
+        private int length;
+
+        private cl_mem in;
+        private cl_mem gaussian;
+        private cl_mem sobel;
+        private cl_mem reduce;
+        private cl_mem merge;
+
+        /**
+         * Direct buffers, because the transfers do not block, so they need host memory
+         * that the garbage collector will not move.
+         */
+        private IntBuffer upload;
+        private IntBuffer download;
+
+        /**
+         * True from when a photo is submitted to this slot until it is finished.
+         */
+        private boolean busy;
+
+        private Slot(cl_command_queue queue) {
+            this.queue = queue;
+        }
+
+        /**
+         * Make sure that the buffers fit a photo, reallocating them if its size has changed.
+         *
+         * @param photoSize the number of pixels in the photo.
+         */
+        private void ensureBuffers(int photoSize) {
+            final int padded = roundUp(photoSize, workGroupSize);
+            if (padded == length) {
+                return;
+            }
+            releaseBuffers();
+            final long bytes = (long) Sizeof.cl_int * padded;
+            in = clCreateBuffer(context, CL_MEM_READ_ONLY, bytes, null, null);
+            gaussian = clCreateBuffer(context, CL_MEM_READ_WRITE, bytes, null, null);
+            sobel = clCreateBuffer(context, CL_MEM_READ_WRITE, bytes, null, null);
+            reduce = clCreateBuffer(context, CL_MEM_READ_WRITE, bytes, null, null);
+            merge = clCreateBuffer(context, CL_MEM_WRITE_ONLY, bytes, null, null);
+            upload = ByteBuffer.allocateDirect(Sizeof.cl_int * padded).order(ByteOrder.nativeOrder()).asIntBuffer();
+            download = ByteBuffer.allocateDirect(Sizeof.cl_int * padded).order(ByteOrder.nativeOrder()).asIntBuffer();
+            length = padded;
+        }
+
+        private void releaseBuffers() {
+            if (length > 0) {
+                clReleaseMemObject(in);
+                clReleaseMemObject(gaussian);
+                clReleaseMemObject(sobel);
+                clReleaseMemObject(reduce);
+                clReleaseMemObject(merge);
+                length = 0;
+            }
+        }
+    }
+
+    /**
+     * Release the buffers, kernels, program, queue and context.
+     */
+    @Override
+    public synchronized void close() {
+        for (Slot slot : slots) {
+            slot.releaseBuffers();
+            clReleaseCommandQueue(slot.queue);
+        }
+        clReleaseKernel(gaussianKernel);
+        clReleaseKernel(sobelKernel);
+        clReleaseKernel(reduceColoursKernel);
+        if (quantizeTable != null) {
+            clReleaseMemObject(quantizeTable);
+        }
+        clReleaseKernel(mergeKernel);
+        clReleaseKernel(gaussianTiledKernel);
+        clReleaseKernel(sobelTiledKernel);
+        clReleaseProgram(program);
+        clReleaseContext(context);
+    }
+}
@@ -0,0 +1,52 @@
+package com.celanim.cartoonify;
+
+/**
+ * Implements the per-pixel stages of Cartoonify: colour reduction and masking.
+ * <p>
+ * The SCALAR engine works one pixel at a time.  The vector
+ * engine uses SIMD instructions when the <code>jdk.incubator.vector</code> module
+ * is available (run java with <code>--add-modules jdk.incubator.vector</code>),
+ * and gives exactly the same images.
+ */
+interface PixelEngine {
+
+    /**
+     * Reduce the colours of the pixels src[from..to-1], storing them in dst.
+     *
+     * @param numColours the number of values in each colour channel (2..256).
+     */
+    void reduceColours(int[] src, int[] dst, int from, int to, int numColours);
+
+    /**
+     * Merge the pixels mask[from..to-1] on top of photo[from..to-1], storing them in dst.
+     * Where the mask is maskColour, the photo is chosen, otherwise the mask.
+     */
+    default void mergeMask(int[] mask, int maskColour, int[] photo, int[] dst, int from, int to) {
+        for (int i = from; i < to; i++) {
+            dst[i] = mask[i] == maskColour ? photo[i] : mask[i];
+        }
+    }
+
+    /**
+     * Reduces colours one pixel at a time, looking each channel up in a QuantizationTable.
+     */
+    PixelEngine SCALAR = (src, dst, from, to, numColours) -> {
+        final QuantizationTable table = QuantizationTable.of(numColours);
+        for (int i = from; i < to; i++) {
+            dst[i] = table.quantizePixel(src[i]);
+        }
+    };
+
+    /**
+     * @return the SIMD engine, or SCALAR if the Vector API is not available.
+     */
+    static PixelEngine vector() {
+        try {
+            return (PixelEngine) Class.forName("com.celanim.cartoonify.VectorPixelEngine")
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            System.err.println("WARNING: Vector API not available, using scalar pixel operations: " + ex);
+            return SCALAR;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.celanim.cartoonify;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The quantized value of every colour value, for one number of colours per channel.
+ * <p>
+ * quantizeColour is a function of two small integers, so its results are worked
+ * out once for each number of colours and then looked up.  The tables are cached,
+ * and shared by every photo and thread, and by the OpenCL kernels, which get a
+ * copy of the table in constant memory.
+ */
+public final class QuantizationTable {
+
+    private static final AtomicReferenceArray<QuantizationTable> CACHE =
+            new AtomicReferenceArray<>(Cartoonify.COLOUR_MASK + 2);
+
+    private final int numColours;
+
+    /**
+     * The quantized value of each colour value 0..COLOUR_MASK.
+     */
+    private final int[] values = new int[Cartoonify.COLOUR_MASK + 1];
+
+    private QuantizationTable(int numColours) {
+        this.numColours = numColours;
+        for (int c = 0; c < values.length; c++) {
+            values[c] = Cartoonify.quantize(c, numColours);
+        }
+    }
+
+    /**
+     * @param numColours the number of values in each colour channel (2..256).
+     * @return the table for that number of colours, which is made the first time it is needed.
+     */
+    public static QuantizationTable of(int numColours) {
+        if (numColours < 2 || numColours > Cartoonify.COLOUR_MASK + 1) {
+            throw new IllegalArgumentException("number of colours must be 2..256, not " + numColours);
+        }
+        QuantizationTable table = CACHE.get(numColours);
+        if (table == null) {
+            // threads that race here make equal tables, and all of them use the first one stored
+            CACHE.compareAndSet(numColours, null, new QuantizationTable(numColours));
+            table = CACHE.get(numColours);
+        }
+        return table;
+    }
+
+    /**
+     * @return the number of values in each colour channel.
+     */
+    public int numColours() {
+        return numColours;
+    }
+
+    /**
+     * @param colourValue 0 .. COLOUR_MASK
+     * @return the same as quantizeColour(colourValue, numColours).
+     */
+    public int quantize(int colourValue) {
+        return values[colourValue];
+    }
+
+    /**
+     * @param rgb a pixel.
+     * @return the pixel with each of its colour channels quantized.
+     */
+    public int quantizePixel(int rgb) {
+        return values[(rgb >> 16) & 0xFF] << 16 | values[(rgb >> 8) & 0xFF] << 8 | values[rgb & 0xFF];
+    }
+
+    /**
+     * @return the table itself, which is shared, so it must not be changed.
+     */
+    int[] values() {
+        return values;
+    }
+}
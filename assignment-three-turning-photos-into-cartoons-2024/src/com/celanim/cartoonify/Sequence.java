@@ -0,0 +1,227 @@
+package com.celanim.cartoonify;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Cartoonifies the frames of a video, such as the numbered PNGs extracted from a clip.
+ * <p>
+ * The frames must all be the same size.  They are processed in a pipeline of three
+ * threads: while one frame is processed, the next frame is loaded and the previous one
+ * is saved.  Each stage hands its frames to the next through a queue of one frame, so
+ * at most about five frames are in memory at once, and their arrays are reused through
+ * the buffer pool of the settings.  The OpenCL session, if any, stays warm throughout.
+ */
+public class Sequence {
+
+    /**
+     * The settings that each stage copies.
+     */
+    private final Cartoonify settings;
+
+    /**
+     * One frame on its way through the pipeline.
+     */
+    private static final class Frame {
+        private final String name;
+        private final String newName;
+        private int[] pixels;
+        private int width;
+        private int height;
+        private long loadStart;
+        private long loadEnd;
+        private long processStart;
+        private long processEnd;
+
+        private Frame(String name, String newName) {
+            this.name = name;
+            this.newName = newName;
+        }
+    }
+
+    /**
+     * Marks the end of the frames in a queue.
+     */
+    private static final Frame END = new Frame(null, null);
+
+    private final BlockingQueue<Frame> loaded = new ArrayBlockingQueue<>(1);
+    private final BlockingQueue<Frame> processed = new ArrayBlockingQueue<>(1);
+
+    /**
+     * The time each stage spent on each frame, and the time from starting to load each
+     * frame until it was saved, including the time it waited between stages, in nanoseconds.
+     * Only the saving thread adds to them, until it has finished.
+     */
+    private final List<Long> loadTimes = new ArrayList<>();
+    private final List<Long> processTimes = new ArrayList<>();
+    private final List<Long> saveTimes = new ArrayList<>();
+    private final List<Long> frameTimes = new ArrayList<>();
+
+    /**
+     * @param settings the options to process each frame with.
+     */
+    public Sequence(Cartoonify settings) {
+        this.settings = settings;
+    }
+
+    /**
+     * Process all the frames, then print the sustained frame rate and the latency percentiles.
+     * Frames that cannot be loaded, or that are a different size from the first frame,
+     * are reported and skipped.
+     *
+     * @param names the frames to process, in order.
+     * @return the number of frames that were saved.
+     * @throws InterruptedException if the calling thread is interrupted.
+     */
+    public int run(List<String> names) throws InterruptedException {
+        final long time0 = System.nanoTime();
+        final Thread loader = new Thread(() -> load(names), "cartoonify-loader");
+        final Thread saver = new Thread(this::save, "cartoonify-saver");
+        loader.setDaemon(true);
+        saver.setDaemon(true);
+        loader.start();
+        saver.start();
+        try {
+            process();
+        } finally {
+            processed.put(END);
+        }
+        saver.join();
+        final double secs = (System.nanoTime() - time0) / 1e9;
+        final int done = frameTimes.size();
+        System.out.format("Processed %d frames in %.3f secs (%.2f frames/sec).%n", done, secs, done / secs);
+        report("Load", loadTimes);
+        report("Process", processTimes);
+        report("Save", saveTimes);
+        report("Frame", frameTimes);
+        if (settings.isDebug()) {
+            System.out.println(settings.getBuffers().stats());
+        }
+        return done;
+    }
+
+    /**
+     * The first stage: load each frame, on its own thread.
+     */
+    private void load(List<String> names) {
+        final Cartoonify reader = new Cartoonify(settings);
+        int width = -1;
+        int height = -1;
+        try {
+            for (String name : names) {
+                final int dot = name.lastIndexOf(".");
+                if (dot <= 0) {
+                    System.err.println("Skipping unknown kind of file: " + name);
+                    continue;
+                }
+                final Frame frame = new Frame(name, name.substring(0, dot) + "_cartoon" + name.substring(dot).toLowerCase());
+                frame.loadStart = System.nanoTime();
+                try {
+                    reader.loadPhoto(name);
+                    frame.width = reader.width();
+                    frame.height = reader.height();
+                    frame.pixels = reader.popImage();
+                    if (width < 0) {
+                        width = frame.width;
+                        height = frame.height;
+                    } else if (frame.width != width || frame.height != height) {
+                        settings.getBuffers().give(frame.pixels);
+                        throw new IOException("Incorrect image size: " + name);
+                    }
+                } catch (IOException | RuntimeException ex) {
+                    System.err.println("Skipping " + name + ": " + ex);
+                    reader.clear();
+                    continue;
+                }
+                frame.loadEnd = System.nanoTime();
+                loaded.put(frame);
+            }
+        } catch (InterruptedException ex) {
+            // the pipeline is being stopped
+        } finally {
+            try {
+                loaded.put(END);
+            } catch (InterruptedException ex) {
+                // nothing is waiting for more frames
+            }
+        }
+    }
+
+    /**
+     * The second stage: cartoonify each frame, on the calling thread.
+     */
+    private void process() throws InterruptedException {
+        final Cartoonify worker = new Cartoonify(settings);
+        for (Frame frame = loaded.take(); frame != END; frame = loaded.take()) {
+            frame.processStart = System.nanoTime();
+            try {
+                worker.pushPhoto(frame.pixels, frame.width, frame.height);
+                worker.processCurrentPhoto();
+                frame.pixels = worker.popImage();
+            } catch (IOException | RuntimeException ex) {
+                System.err.println("Skipping " + frame.name + ": " + ex);
+                continue;
+            } finally {
+                worker.clear();
+            }
+            frame.processEnd = System.nanoTime();
+            processed.put(frame);
+        }
+    }
+
+    /**
+     * The last stage: save each frame, on its own thread.
+     */
+    private void save() {
+        final Cartoonify writer = new Cartoonify(settings);
+        try {
+            for (Frame frame = processed.take(); frame != END; frame = processed.take()) {
+                final long saveStart = System.nanoTime();
+                try {
+                    writer.pushPhoto(frame.pixels, frame.width, frame.height);
+                    writer.savePhoto(frame.newName);
+                } catch (IOException | RuntimeException ex) {
+                    System.err.println("WARNING: could not save " + frame.newName + ": " + ex);
+                    continue;
+                } finally {
+                    writer.clear();
+                }
+                final long saveEnd = System.nanoTime();
+                loadTimes.add(frame.loadEnd - frame.loadStart);
+                processTimes.add(frame.processEnd - frame.processStart);
+                saveTimes.add(saveEnd - saveStart);
+                frameTimes.add(saveEnd - frame.loadStart);
+            }
+        } catch (InterruptedException ex) {
+            // the pipeline is being stopped
+        }
+    }
+
+    /**
+     * Print the 50th, 90th and 99th percentiles and the maximum of some latencies.
+     */
+    private static void report(String stage, List<Long> times) {
+        if (times.isEmpty()) {
+            return;
+        }
+        final long[] sorted = times.stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(sorted);
+        System.out.format("%-7s latency: p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms.%n", stage,
+                percentile(sorted, 50) / 1e6, percentile(sorted, 90) / 1e6,
+                percentile(sorted, 99) / 1e6, sorted[sorted.length - 1] / 1e6);
+    }
+
+    /**
+     * @param sorted some values, in ascending order.  At least one.
+     * @param percent the percentile wanted, from 0 to 100.
+     * @return the smallest value that is at least as large as percent% of the values.
+     */
+    static long percentile(long[] sorted, double percent) {
+        final int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+}
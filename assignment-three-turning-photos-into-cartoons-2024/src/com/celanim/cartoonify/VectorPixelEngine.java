@@ -0,0 +1,70 @@
+package com.celanim.cartoonify;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Colour reduction and masking that process a whole SIMD register of pixels at once,
+ * using the (incubating) Vector API.
+ * <p>
+ * Colour reduction looks each channel up in the 256-entry QuantizationTable, with
+ * a gather load.  Masking compares a whole register with the mask colour and blends.
+ * <p>
+ * Only create this class through <code>PixelEngine.vector()</code>, which
+ * falls back to the scalar engine when the Vector API is not available.
+ */
+class VectorPixelEngine implements PixelEngine {
+
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+    /**
+     * The channel values of one register of pixels, which the gather loads use as indexes.
+     */
+    private final ThreadLocal<int[]> indexes = ThreadLocal.withInitial(() -> new int[SPECIES.length()]);
+
+    @Override
+    public void reduceColours(int[] src, int[] dst, int from, int to, int numColours) {
+        final int[] lookup = QuantizationTable.of(numColours).values();
+        final int[] index = indexes.get();
+        int i = from;
+        int upper = from + SPECIES.loopBound(to - from);
+        for (; i < upper; i += SPECIES.length()) {
+            IntVector pixels = IntVector.fromArray(SPECIES, src, i);
+            IntVector red = lookup(lookup, index, pixels, 16);
+            IntVector green = lookup(lookup, index, pixels, 8);
+            IntVector blue = lookup(lookup, index, pixels, 0);
+            red.lanewise(VectorOperators.LSHL, 16)
+                    .or(green.lanewise(VectorOperators.LSHL, 8))
+                    .or(blue)
+                    .intoArray(dst, i);
+        }
+        for (; i < to; i++) {
+            int rgb = src[i];
+            dst[i] = lookup[(rgb >> 16) & 0xFF] << 16 | lookup[(rgb >> 8) & 0xFF] << 8 | lookup[rgb & 0xFF];
+        }
+    }
+
+    /**
+     * @return the table entry of the 8-bit colour channel starting at the given bit, of each pixel.
+     */
+    private static IntVector lookup(int[] table, int[] index, IntVector pixels, int shift) {
+        pixels.lanewise(VectorOperators.LSHR, shift).and(0xFF).intoArray(index, 0);
+        return IntVector.fromArray(SPECIES, table, 0, index, 0);
+    }
+
+    @Override
+    public void mergeMask(int[] mask, int maskColour, int[] photo, int[] dst, int from, int to) {
+        int i = from;
+        int upper = from + SPECIES.loopBound(to - from);
+        for (; i < upper; i += SPECIES.length()) {
+            IntVector maskPixels = IntVector.fromArray(SPECIES, mask, i);
+            VectorMask<Integer> unmasked = maskPixels.eq(maskColour);
+            maskPixels.blend(IntVector.fromArray(SPECIES, photo, i), unmasked).intoArray(dst, i);
+        }
+        for (; i < to; i++) {
+            dst[i] = mask[i] == maskColour ? photo[i] : mask[i];
+        }
+    }
+}
@@ -26,17 +26,13 @@ int wrap(int pos, int size) {
     return pos;
 }
 
-int quantizeColour(int colourValue, int numPerChannel) {
-    float colour = colourValue / (255 + 1.0f) * numPerChannel;
-    int discrete = round(colour - 0.49999f);
-    int newColour = discrete * 255 / (numPerChannel - 1);
-    return newColour;
-}
-
 
 __kernel void gaussianBlur(__global int *pixels, __global int *newPixels,
                            const int width, const int height) {
 	int gid = get_global_id(0);
+	if (gid >= width * height) {
+		return; // the padding at the end of the last work-group
+	}
 	int xCentre = gid%width;
 	int yCentre = gid/width;
 	int red=0, green=0, blue=0;
@@ -65,6 +61,9 @@ __kernel void gaussianBlur(__global int *pixels, __global int *newPixels,
 __kernel void sobelEdgeDetect(__global int *pixels, __global int *newPixels,const int width, const int height, const int edgeThreshold) {
 
     int gid = get_global_id(0);
+    if (gid >= width * height) {
+        return; // the padding at the end of the last work-group
+    }
     int totalGradient;
     int redVertical=0;
     int blueVertical=0;
@@ -111,13 +110,14 @@ __kernel void sobelEdgeDetect(__global int *pixels, __global int *newPixels,cons
 }
 
 
-__kernel void reduceColours(__global int *oldPixels, __global int *newPixels,  const int numColours) {
+// 'table' is the QuantizationTable of the host, which gives the quantized value of each colour value.
+__kernel void reduceColours(__global int *oldPixels, __global int *newPixels, __constant int *table) {
 
     int gid = get_global_id(0);
     int rgb = oldPixels[gid];
-    int newRed = quantizeColour(colourValue(rgb,2), numColours);
-    int newGreen = quantizeColour(colourValue(rgb,1), numColours);
-    int newBlue = quantizeColour(colourValue(rgb,0), numColours);
+    int newRed = table[colourValue(rgb,2)];
+    int newGreen = table[colourValue(rgb,1)];
+    int newBlue = table[colourValue(rgb,0)];
     newPixels[gid] = createPixel(newRed, newGreen, newBlue);
 }
 
@@ -131,3 +131,100 @@ __kernel void mergeMask(__global int *maskPixels, __global int *photoPixels, __g
     }
 }
 
+
+// The tiled kernels below run on 2D work-groups.  Each work-group first copies its
+// tile of the photo, plus a border of the pixels around it, into local memory, so
+// each pixel is read from global memory about once, instead of once per neighbour.
+
+// Copies the tile of this work-group, plus 'border' pixels on each side, into 'tile'.
+// Pixels beyond the edges of the photo are reflected back in, like wrap does.
+void loadTile(__global const int *pixels, __local int *tile, const int width, const int height, const int border) {
+    int localWidth = get_local_size(0);
+    int localSize = localWidth * get_local_size(1);
+    int tileWidth = localWidth + 2 * border;
+    int tileSize = tileWidth * (get_local_size(1) + 2 * border);
+    int x0 = get_group_id(0) * localWidth - border;
+    int y0 = get_group_id(1) * get_local_size(1) - border;
+    for (int i = get_local_id(1) * localWidth + get_local_id(0); i < tileSize; i += localSize) {
+        // the min and max only matter for the work-items beyond the photo, which write nothing
+        int x = min(max(wrap(x0 + i % tileWidth, width), 0), width - 1);
+        int y = min(max(wrap(y0 + i / tileWidth, height), 0), height - 1);
+        tile[i] = pixels[y * width + x];
+    }
+    barrier(CLK_LOCAL_MEM_FENCE);
+}
+
+__kernel void gaussianBlurTiled(__global const int *pixels, __global int *newPixels,
+                                const int width, const int height, __local int *tile) {
+    loadTile(pixels, tile, width, height, 2);
+    int xCentre = get_global_id(0);
+    int yCentre = get_global_id(1);
+    if (xCentre >= width || yCentre >= height) {
+        return;
+    }
+    int tileWidth = get_local_size(0) + 4;
+    int tileCentre = (get_local_id(1) + 2) * tileWidth + get_local_id(0) + 2;
+    int red=0, green=0, blue=0;
+    double gaussianSum = 159.0;
+    int filter[] = {
+        2, 4, 5, 4, 2, // sum=17
+        4, 9, 12, 9, 4, // sum=38
+        5, 12, 15, 12, 5, // sum=49
+        4, 9, 12, 9, 4, // sum=38
+        2, 4, 5, 4, 2  // sum=17
+    };
+    for (int filterY = 0; filterY < 5; filterY++) {
+        for (int filterX = 0; filterX < 5; filterX++) {
+            int rgb = tile[tileCentre + (filterY - 2) * tileWidth + filterX - 2];
+            int filterVal = filter[filterY * 5 + filterX];
+            red += colourValue(rgb, 2) * filterVal;
+            green += colourValue(rgb, 1) * filterVal;
+            blue += colourValue(rgb, 0) * filterVal;
+        }
+    }
+    newPixels[yCentre * width + xCentre] = createPixel(clamp(red/ gaussianSum),clamp(green/ gaussianSum),clamp(blue/ gaussianSum));
+}
+
+__kernel void sobelEdgeDetectTiled(__global const int *pixels, __global int *newPixels,
+                                   const int width, const int height, const int edgeThreshold, __local int *tile) {
+    loadTile(pixels, tile, width, height, 1);
+    int xCentre = get_global_id(0);
+    int yCentre = get_global_id(1);
+    if (xCentre >= width || yCentre >= height) {
+        return;
+    }
+    int tileWidth = get_local_size(0) + 2;
+    int tileCentre = (get_local_id(1) + 1) * tileWidth + get_local_id(0) + 1;
+    int redVertical=0, greenVertical=0, blueVertical=0;
+    int redHorizontal=0, greenHorizontal=0, blueHorizontal=0;
+    int filter_vertical[]= {
+            -1, 0, +1,
+            -2, 0, +2,
+            -1, 0, +1
+    };
+    int filter_horizontal[] = {
+            +1, +2, +1,
+            0, 0, 0,
+            -1, -2, -1
+    };
+    for (int filterY = 0; filterY < 3; filterY++) {
+        for (int filterX = 0; filterX < 3; filterX++) {
+            int rgb = tile[tileCentre + (filterY - 1) * tileWidth + filterX - 1];
+            int filterVertical = filter_vertical[filterY * 3 + filterX];
+            int filterHorizontal = filter_horizontal[filterY * 3 + filterX];
+            redHorizontal += colourValue(rgb, 2) * filterHorizontal;
+            greenHorizontal += colourValue(rgb, 1) * filterHorizontal;
+            blueHorizontal += colourValue(rgb, 0) * filterHorizontal;
+            redVertical += colourValue(rgb, 2) * filterVertical;
+            greenVertical += colourValue(rgb, 1) * filterVertical;
+            blueVertical += colourValue(rgb, 0) * filterVertical;
+        }
+    }
+    int totalGradient = abs(redHorizontal) + abs(greenHorizontal) + abs(blueHorizontal)
+            +abs(redVertical) + abs(greenVertical) + abs(blueVertical);
+    if (totalGradient >= edgeThreshold) {
+        newPixels[yCentre * width + xCentre] = 0;
+    } else {
+        newPixels[yCentre * width + xCentre] = 16777215;
+    }
+}
@@ -2,8 +2,17 @@ package com.celanim.cartoonify;
 
 import static org.junit.Assert.*;
 
+import java.awt.image.BufferedImage;
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 
+import javax.imageio.ImageIO;
+
+import org.junit.Assume;
 import org.junit.Ignore;
 import org.junit.Test;
 
@@ -80,6 +89,243 @@ public class CartoonifyTest {
 		assertEquals(0, cart.numImages());
 	}
 
+	@Test
+	public void testParallelBands() throws IOException {
+		Cartoonify cart = new Cartoonify();
+		cart.setNumThreads(3);
+		cart.setEdgeThreshold(256);
+		cart.setNumColours(3);
+		cart.loadPhoto("test.png");
+		cart.processPhotoOnCPU();
+		assertEquals(6, cart.numImages());
+		int[] actual = cart.popImage();
+		cart.clear();
+		cart.loadPhoto("test_cartoon_e256_c3.png");
+		assertArrayEquals(cart.currentImage(), actual);
+		// a copy keeps working after the original changes its number of threads
+		Cartoonify copy = new Cartoonify(cart);
+		cart.setNumThreads(2);
+		copy.loadPhoto("test.png");
+		copy.processPhotoOnCPU();
+		assertArrayEquals(cart.currentImage(), copy.popImage());
+	}
+
+	@Test
+	public void testFusedTiles() throws IOException {
+		Cartoonify cart = new Cartoonify();
+		cart.loadPhoto("test_cartoon_e256_c3.png");
+		int[] expected = cart.popImage();
+		cart.setEdgeThreshold(256);
+		cart.setNumColours(3);
+		// 7 does not divide the 30 rows, so the last tile is short
+		for (int tileRows : new int[] {1, 7, 30, 100}) {
+			for (int threads : new int[] {1, 2}) {
+				cart.setNumThreads(threads);
+				cart.loadPhoto("test.png");
+				cart.processPhotoFused(tileRows);
+				// only the final image is pushed
+				assertEquals(2, cart.numImages());
+				assertArrayEquals("tile rows " + tileRows, expected, cart.popImage());
+				cart.clear();
+			}
+		}
+	}
+
+	@Test
+	public void testBatch() throws IOException, InterruptedException {
+		Cartoonify settings = new Cartoonify();
+		settings.setEdgeThreshold(256);
+		settings.setNumColours(3);
+		File dir = Files.createTempDirectory("batch").toFile();
+		try {
+			// photos of different sizes
+			List<String> names = copiesOfTest(dir, "photo", 4, 2);
+			assertEquals(4, new Batch(settings, 2).run(names));
+			Cartoonify cart = new Cartoonify();
+			cart.loadPhoto("test_cartoon_e256_c3.png");
+			int[] expected = cart.popImage();
+			for (int i = 0; i < 4; i++) {
+				cart.loadPhoto(new File(dir, "photo" + i + "_cartoon.png").getPath());
+				int[] actual = cart.popImage();
+				if (i == 2) {
+					assertEquals(7 * 5, actual.length);
+				} else {
+					assertArrayEquals(expected, actual);
+				}
+			}
+		} finally {
+			deleteAll(dir);
+		}
+	}
+
+	@Test
+	public void testSequence() throws IOException, InterruptedException {
+		Cartoonify settings = new Cartoonify();
+		settings.setEdgeThreshold(256);
+		settings.setNumColours(3);
+		File dir = Files.createTempDirectory("frames").toFile();
+		try {
+			// frame 3 is the wrong size, so it is skipped
+			List<String> names = copiesOfTest(dir, "frame", 6, 3);
+			assertEquals(5, new Sequence(settings).run(names));
+			Cartoonify cart = new Cartoonify();
+			cart.loadPhoto("test_cartoon_e256_c3.png");
+			int[] expected = cart.popImage();
+			for (int i = 0; i < 6; i++) {
+				File result = new File(dir, "frame" + i + "_cartoon.png");
+				if (i == 3) {
+					assertFalse(result.exists());
+				} else {
+					cart.loadPhoto(result.getPath());
+					assertArrayEquals(expected, cart.popImage());
+				}
+			}
+		} finally {
+			deleteAll(dir);
+		}
+		long[] sorted = {10, 20, 30, 40, 50, 60, 70, 80, 90, 100};
+		assertEquals(50, Sequence.percentile(sorted, 50));
+		assertEquals(90, Sequence.percentile(sorted, 90));
+		assertEquals(100, Sequence.percentile(sorted, 99));
+		assertEquals(10, Sequence.percentile(sorted, 0));
+	}
+
+	@Test
+	public void testBufferPool() throws IOException {
+		Cartoonify cart = new Cartoonify();
+		BufferPool buffers = new BufferPool(BufferPool.DEFAULT_CAPACITY);
+		cart.setBuffers(buffers);
+		cart.setEdgeThreshold(256);
+		cart.setNumColours(3);
+		cart.loadPhoto("test.png");
+		cart.processPhotoOnCPU();
+		assertEquals(6, buffers.allocated());
+		cart.clear();
+		// the second photo reuses all the arrays of the first
+		cart.loadPhoto("test.png");
+		cart.processPhotoOnCPU();
+		assertEquals(6, buffers.allocated());
+		assertEquals(6, buffers.reused());
+		int[] actual = cart.popImage();
+		cart.clear();
+		cart.loadPhoto("test_cartoon_e256_c3.png");
+		assertArrayEquals(cart.currentImage(), actual);
+		// a full pool drops the array given back longest ago
+		BufferPool tiny = new BufferPool(4 * 50 * 30);
+		int[] first = new int[50 * 30];
+		int[] second = new int[50 * 30];
+		tiny.give(first);
+		tiny.give(second);
+		assertEquals(1, tiny.discarded());
+		assertSame(second, tiny.take(50 * 30));
+		assertEquals(1, tiny.reused());
+		// an array larger than the whole pool is dropped
+		tiny.give(new int[50 * 31]);
+		assertEquals(2, tiny.discarded());
+	}
+
+	@Test
+	public void testBufferPoolSizes() {
+		// room for two large arrays, or four small ones
+		BufferPool pool = new BufferPool(4 * 400);
+		int[] lengths = {100, 100, 100, 200, 200, 200, 100, 100, 100};
+		int[] allocated = {2, 2, 2, 4, 4, 4, 6, 6, 6};
+		for (int round = 0; round < lengths.length; round++) {
+			// each photo needs two arrays, which are given back before the next photo
+			int[] a = pool.take(lengths[round]);
+			int[] b = pool.take(lengths[round]);
+			pool.give(a);
+			pool.give(b);
+			// the arrays of the old size make room for the new size, so only
+			// the first photo after each change of size allocates its arrays
+			assertEquals("round " + round, allocated[round], pool.allocated());
+		}
+		assertEquals(12, pool.reused());
+		// both small arrays, then one large array, were evicted
+		assertEquals(3, pool.discarded());
+	}
+
+	@Test
+	public void testOpenCLSession() throws IOException, InterruptedException {
+		OpenCLSession session;
+		try {
+			session = new OpenCLSession();
+		} catch (UnsatisfiedLinkError | RuntimeException ex) {
+			// -Dcartoonify.requireOpenCL=true makes a missing device fail the test, for runs on POCL
+			if (Boolean.getBoolean("cartoonify.requireOpenCL")) {
+				throw ex;
+			}
+			Assume.assumeNoException("no OpenCL device", ex);
+			return;
+		}
+		try {
+			Cartoonify cart = new Cartoonify();
+			cart.setOpenCL(session);
+			cart.setEdgeThreshold(256);
+			cart.setNumColours(3);
+			cart.loadPhoto("test_cartoon_e256_c3.png");
+			int[] expected = cart.popImage();
+			// the second photo reuses the device buffers of the first
+			for (int i = 0; i < 2; i++) {
+				cart.loadPhoto("test.png");
+				cart.processPhotoOpenCL();
+				assertEquals(2, cart.numImages());
+				assertArrayEquals(expected, cart.currentImage());
+				assertEquals(OpenCLSession.roundUp(50 * 30, session.workGroupSize()), session.bufferLength());
+				cart.clear();
+				// the 1D kernels give the same result as the tiled ones
+				session.setTiled(!session.isTiled());
+			}
+			// two photos on the device at once, one in each slot
+			cart.loadPhoto("test.png");
+			OpenCLSession.Frame first = session.submit(cart.currentImage(), 50, 30, 256, 3, cart.white);
+			OpenCLSession.Frame second = session.submit(cart.currentImage(), 50, 30, 256, 3, cart.white);
+			int[] actual = new int[50 * 30];
+			int[] blurred = new int[50 * 30];
+			second.finish(actual, blurred, null, null);
+			assertArrayEquals(expected, actual);
+			cart.gaussianBlur();
+			assertArrayEquals(cart.currentImage(), blurred);
+			first.finish(actual, null, null, null);
+			assertArrayEquals(expected, actual);
+			cart.clear();
+			// in a photo this small, the padding of the last work-group spans several rows
+			Random random = new Random(42);
+			int[] noise = new int[5 * 7];
+			for (int i = 0; i < noise.length; i++) {
+				noise[i] = random.nextInt(1 << 24);
+			}
+			for (int i = 0; i < 2; i++) {
+				cart.pushPhoto(noise.clone(), 5, 7);
+				cart.processPhotoOnCPU();
+				int[] onCPU = cart.popImage();
+				cart.clear();
+				cart.pushPhoto(noise.clone(), 5, 7);
+				cart.processPhotoOpenCL();
+				assertArrayEquals(onCPU, cart.currentImage());
+				cart.clear();
+				session.setTiled(!session.isTiled());
+			}
+		} finally {
+			session.close();
+		}
+	}
+
+	@Test
+	public void testWorkGroupSizes() {
+		assertEquals(256, OpenCLSession.workGroupSize(1024));
+		assertEquals(64, OpenCLSession.workGroupSize(100));
+		assertEquals(1, OpenCLSession.workGroupSize(1));
+		assertEquals(16, OpenCLSession.tileSide(1024, 32 * 1024, 2));
+		assertEquals(8, OpenCLSession.tileSide(64, 32 * 1024, 2));
+		assertEquals(8, OpenCLSession.tileSide(128, 32 * 1024, 1));
+		// a 4x4 tile with a border of 2 takes 8*8*4 bytes, which fits in half of 600 bytes
+		assertEquals(4, OpenCLSession.tileSide(1024, 600, 2));
+		assertEquals(1, OpenCLSession.tileSide(1024, 0, 2));
+		assertEquals(1536, OpenCLSession.roundUp(1500, 256));
+		assertEquals(1500, OpenCLSession.roundUp(1500, 4));
+	}
+
 	@Test
 	public void testClamp() {
 		Cartoonify cart = new Cartoonify();
@@ -148,6 +394,57 @@ public class CartoonifyTest {
 		assertEquals(255, cart.quantizeColour(255, 26));
 	}
 
+	@Test
+	public void testQuantizationTable() {
+		Cartoonify cart = new Cartoonify();
+		for (int numColours = 2; numColours <= 256; numColours++) {
+			QuantizationTable table = QuantizationTable.of(numColours);
+			assertSame(table, QuantizationTable.of(numColours));
+			assertEquals(numColours, table.numColours());
+			for (int c = 0; c < 256; c++) {
+				assertEquals(cart.quantizeColour(c, numColours), table.quantize(c));
+			}
+		}
+		assertEquals(0x00007FFF, QuantizationTable.of(3).quantizePixel(0x00555AAB));
+		try {
+			QuantizationTable.of(1);
+			fail("a single colour cannot be quantized");
+		} catch (IllegalArgumentException ex) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testVectorEngine() {
+		PixelEngine vector = PixelEngine.vector();
+		Assume.assumeTrue("Vector API not available", vector != PixelEngine.SCALAR);
+		Random rand = new Random(42);
+		int[] src = new int[1000];
+		int[] mask = new int[src.length];
+		for (int i = 0; i < src.length; i++) {
+			// every channel value appears in some pixel
+			src[i] = i < 256 ? i << 16 | (255 - i) << 8 | i : rand.nextInt() & 0xFFFFFF;
+			mask[i] = rand.nextBoolean() ? 0x00FFFFFF : rand.nextInt() & 0xFFFFFF;
+		}
+		int[] expected = new int[src.length];
+		int[] actual = new int[src.length];
+		for (int numColours = 2; numColours <= 256; numColours++) {
+			// an odd range, so that part of it is done one pixel at a time
+			PixelEngine.SCALAR.reduceColours(src, expected, 3, 997, numColours);
+			vector.reduceColours(src, actual, 3, 997, numColours);
+			assertArrayEquals("numColours " + numColours, expected, actual);
+		}
+		// the same boundaries as testQuantizeColour3
+		vector.reduceColours(new int[] {0x00005556, 0x00AAAB00}, actual, 0, 2, 3);
+		assertEquals(0x0000007F, actual[0]);
+		assertEquals(0x007FFF00, actual[1]);
+		expected = new int[src.length];
+		actual = new int[src.length];
+		PixelEngine.SCALAR.mergeMask(mask, 0x00FFFFFF, src, expected, 1, 999);
+		vector.mergeMask(mask, 0x00FFFFFF, src, actual, 1, 999);
+		assertArrayEquals(expected, actual);
+	}
+
 	@Test
 	public void testConvolutionCentre() throws IOException {
 		Cartoonify cart = new Cartoonify();
@@ -212,6 +509,50 @@ public class CartoonifyTest {
 		assertEquals(cart.createPixel(170, 170, 170), cart.pixel(17, 2)); // white with diagonal black line
 	}
 
+	@Test
+	public void testFastBlur() throws IOException {
+		Cartoonify cart = new Cartoonify();
+		// the reciprocal rounds the same way as clamp, for every possible sum
+		for (int sum = 0; sum <= 255 * 159; sum++) {
+			assertEquals(cart.clamp(sum / Cartoonify.GAUSSIAN_SUM), Cartoonify.divideByGaussianSum(sum));
+		}
+		// small photos, so that every pixel is near an edge
+		Random random = new Random(42);
+		File file = File.createTempFile("blur", ".png");
+		try {
+			for (int size : new int[] {2, 3, 4, 5, 9}) {
+				BufferedImage image = new BufferedImage(size, size + 3, BufferedImage.TYPE_INT_RGB);
+				for (int y = 0; y < image.getHeight(); y++) {
+					for (int x = 0; x < size; x++) {
+						image.setRGB(x, y, random.nextInt(1 << 24));
+					}
+				}
+				ImageIO.write(image, "png", file);
+				cart.loadPhoto(file.getPath());
+				cart.setSeparableBlur(false);
+				cart.gaussianBlur();
+				int[] exact = cart.popImage();
+				cart.setSeparableBlur(true);
+				cart.gaussianBlur();
+				int[] approx = cart.popImage();
+				for (int y = 0; y < cart.height(); y++) {
+					for (int x = 0; x < size; x++) {
+						int i = y * size + x;
+						assertEquals("pixel " + i, cart.convolutionGaussian(x, y), exact[i]);
+						// the separable blur is within a few units of the exact one
+						for (int colour = 0; colour < 3; colour++) {
+							int diff = cart.colourValue(exact[i], colour) - cart.colourValue(approx[i], colour);
+							assertTrue("pixel " + i + " differs by " + diff, Math.abs(diff) <= 3);
+						}
+					}
+				}
+				cart.clear();
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
 	/**
 	 * This tests the Gaussian blurring near the edge, to see how it works with wrapping.
 	 * @throws IOException
@@ -228,4 +569,37 @@ public class CartoonifyTest {
 		assertEquals(cart.createPixel(212, 212, 239), cart.pixel(16, 0)); // some blue, mostly white plus diagonal black line
 		assertEquals(cart.createPixel(212, 212, 212), cart.pixel(17, 0)); // white with diagonal black line
 	}
+
+	/**
+	 * Copy test.png into a directory a number of times, except that one copy is a
+	 * black 7x5 image instead.
+	 *
+	 * @return the names of the copies, which are prefix0.png, prefix1.png, and so on.
+	 */
+	private static List<String> copiesOfTest(File dir, String prefix, int count, int odd) throws IOException {
+		List<String> names = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			File copy = new File(dir, prefix + i + ".png");
+			if (i == odd) {
+				ImageIO.write(new BufferedImage(7, 5, BufferedImage.TYPE_INT_RGB), "png", copy);
+			} else {
+				Files.copy(new File("test.png").toPath(), copy.toPath());
+			}
+			names.add(copy.getPath());
+		}
+		return names;
+	}
+
+	/**
+	 * Delete a directory and the files in it.
+	 */
+	private static void deleteAll(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
 }